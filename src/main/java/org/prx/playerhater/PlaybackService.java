@@ -15,34 +15,163 @@
  ******************************************************************************/
 package org.prx.playerhater;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.prx.playerhater.cache.CachingProxy;
+import org.prx.playerhater.cache.ClipPack;
+import org.prx.playerhater.cache.HeadPrefetcher;
+import org.prx.playerhater.cache.SongDownloader;
+import org.prx.playerhater.mediaplayer.Crossfade;
 import org.prx.playerhater.mediaplayer.MediaPlayerPool;
+import org.prx.playerhater.mediaplayer.MediaPlayerPool.OnPlayerAcquiredListener;
+import org.prx.playerhater.mediaplayer.MediaPlayerPool.PlayerFactory;
+import org.prx.playerhater.mediaplayer.MediaPlayerPool.PlayerRequest;
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
 import org.prx.playerhater.mediaplayer.PlaylistSupportingPlayer;
+import org.prx.playerhater.mediaplayer.StateJournal;
+import org.prx.playerhater.mediaplayer.StatelyPlayer;
+import org.prx.playerhater.mediaplayer.VolumeAutomation;
 import org.prx.playerhater.service.PlayerHaterService;
 import org.prx.playerhater.songs.SongQueue;
 import org.prx.playerhater.songs.SongQueue.OnQueuedSongsChangedListener;
+import org.prx.playerhater.util.Log;
 
+import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 public class PlaybackService extends PlayerHaterService implements
 		OnQueuedSongsChangedListener, OnErrorListener, OnCompletionListener {
 
 	private MediaPlayerPool<PlaylistSupportingPlayer> mMediaPlayerPool;
+	private int mLookAhead;
+	private int mLookBehind;
+	private int mCrossfade;
+	// The player for the song before, while it fades out under this one.
+	private final Crossfade<PlaylistSupportingPlayer> mFade = new Crossfade<PlaylistSupportingPlayer>();
+	private long mCreatedAt;
+	private volatile long mStartupTime = -1;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private PlayerRequest<PlaylistSupportingPlayer> mPendingPlayer;
+	private Song mPendingSong;
+	private boolean mPendingWasPlaying;
+	private PlaybackStatistics mStatistics;
+	private Song mStatisticsSong;
+	private int mDownloadAhead;
+	private SongDownloader mDownloader;
+	private HeadPrefetcher mHeadPrefetcher;
+
+	private static final PlayerFactory<PlaylistSupportingPlayer> PLAYER_FACTORY = new PlayerFactory<PlaylistSupportingPlayer>() {
+
+		@Override
+		public PlaylistSupportingPlayer newPlayer(Context context) {
+			return new PlaylistSupportingPlayer(context);
+		}
+	};
 
 	@Override
 	public void onCreate() {
+		mCreatedAt = SystemClock.elapsedRealtime();
 		super.onCreate();
-		mMediaPlayerPool = MediaPlayerPool
-				.getInstance(getApplicationContext(), PlaylistSupportingPlayer.class);
+		mLookAhead = Math.max(0,
+				getResources().getInteger(R.integer.zzz_ph_look_ahead));
+		mLookBehind = Math.max(0,
+				getResources().getInteger(R.integer.zzz_ph_look_behind));
+		mCrossfade = Math.max(0,
+				getResources().getInteger(R.integer.zzz_ph_crossfade)) * 1000;
+		// One for the song that's playing, one for each neighbour we keep
+		// ready, and one spare for whatever gets asked for out of order.
+		mMediaPlayerPool = new MediaPlayerPool<PlaylistSupportingPlayer>(
+				getApplicationContext(), PLAYER_FACTORY,
+				mLookAhead + mLookBehind + 2);
+		mMediaPlayerPool.setOnPreparedListener(mOnNeighbourPrepared);
+		mDownloadAhead = Math.max(0,
+				getResources().getInteger(R.integer.zzz_ph_download_ahead));
+		if (mDownloadAhead > 0) {
+			startDownloader();
+		}
+		int headCache = getResources().getInteger(R.integer.zzz_ph_head_cache);
+		if (headCache > 0 && CachingProxy.isEnabled(this)) {
+			mHeadPrefetcher = HeadPrefetcher.create(getApplicationContext(),
+					headCache);
+		}
+		mMediaPlayerPool.warmUp(new Runnable() {
+
+			@Override
+			public void run() {
+				mStartupTime = SystemClock.elapsedRealtime() - mCreatedAt;
+				Log.d("Ready to play " + mStartupTime + "ms after onCreate");
+			}
+		});
+	}
+
+	/**
+	 * @return How long it took, in milliseconds, from {@link #onCreate()}
+	 *         until there was a player ready to take a song, or {@code -1} if
+	 *         that hasn't happened yet.
+	 */
+	public long getStartupTime() {
+		return mStartupTime;
+	}
+
+	/**
+	 * @return The state journal of the player for the song that's playing, or
+	 *         {@code null} if there isn't one yet.
+	 */
+	public synchronized StateJournal getStateJournal() {
+		PlaylistSupportingPlayer player = peekMediaPlayer();
+		return player == null ? null : player.getJournal();
 	}
 
 	@Override
 	public void onDestroy() {
+		endCrossfade();
+		cancelPendingPlayer();
+		finishStatistics();
 		mMediaPlayerPool.release();
+		if (mDownloader != null) {
+			mDownloader.shutdown();
+		}
+		if (mHeadPrefetcher != null) {
+			mHeadPrefetcher.shutdown();
+		}
+		CachingProxy.stopInstance();
+		ClipPack.closeAll();
 		super.onDestroy();
 	}
 
+	@Override
+	public boolean pause(boolean fromApplication) {
+		// The song fading out mustn't carry on once the user has paused.
+		endCrossfade();
+		return super.pause(fromApplication);
+	}
+
+	@Override
+	public boolean stop() {
+		endCrossfade();
+		return super.stop();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		mMediaPlayerPool.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mMediaPlayerPool.trimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
 	@Override
 	public boolean play(Song song, int startTime) {
 		onSongFinished(nowPlaying(), PlayerHater.FINISH_SKIP_BUTTON);
@@ -139,39 +268,275 @@ public class PlaybackService extends PlayerHaterService implements
 	}
 
 	@Override
-	public void onNowPlayingChanged(Song nowPlaying, Song was) {
+	public synchronized void onNowPlayingChanged(Song nowPlaying, Song was) {
 		startTransaction();
-		mMediaPlayerPool.recycle(peekMediaPlayer());
+		// Never more than two players going at once. The change a crossfade
+		// makes itself is the one time two are meant to be.
+		PlaylistSupportingPlayer fadedOut = mFade.onNowPlayingChanged(nowPlaying);
+		if (fadedOut != null) {
+			endCrossfade(fadedOut);
+		}
+		// Only the last of several quick skips is worth getting a player for.
+		cancelPendingPlayer();
+		finishStatistics();
+		if (nowPlaying != null) {
+			mStatistics = new PlaybackStatistics();
+			mStatisticsSong = nowPlaying;
+		}
+		// Detach the old player before handing it back so that the pool's
+		// listeners aren't cleared out from under it.
+		PlaylistSupportingPlayer oldPlayer = peekMediaPlayer();
+		boolean wasPlaying = isPlaying();
+		setMediaPlayer(null);
+		if (oldPlayer != null) {
+			oldPlayer.setNextPlayer(null);
+		}
+		recycle(oldPlayer, was);
 		if (nowPlaying == null) {
-			setMediaPlayer(null);
+			commitTransaction();
+			onSongChanged(nowPlaying);
 		} else {
-			setMediaPlayer(mMediaPlayerPool.getPlayer(getApplicationContext(),
-					nowPlaying.getUri()));
-			if (isPlaying()) {
-				getMediaPlayer().start();
-			} else {
+			// The transaction stays open until the new player is in place, so
+			// nobody sees us stop between songs.
+			mPendingSong = nowPlaying;
+			mPendingWasPlaying = wasPlaying;
+			mPendingPlayer = mMediaPlayerPool.acquire(getApplicationContext(),
+					nowPlaying.getUri(), mOnPlayerAcquired);
+		}
+	}
+
+	private final OnPlayerAcquiredListener<PlaylistSupportingPlayer> mOnPlayerAcquired = new OnPlayerAcquiredListener<PlaylistSupportingPlayer>() {
 
+		@Override
+		public void onPlayerAcquired(
+				final PlayerRequest<PlaylistSupportingPlayer> request,
+				final PlaylistSupportingPlayer player) {
+			mHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					installPendingPlayer(request, player);
+				}
+			});
+		}
+	};
+
+	private synchronized void installPendingPlayer(
+			PlayerRequest<PlaylistSupportingPlayer> request,
+			PlaylistSupportingPlayer player) {
+		if (request != mPendingPlayer) {
+			// Already installed by getMediaPlayer(), or overtaken by a later
+			// song.
+			if (player != null && player != peekMediaPlayer()) {
+				mMediaPlayerPool.recycle(player, request.getUri());
 			}
+			return;
+		}
+		Song song = mPendingSong;
+		mPendingPlayer = null;
+		mPendingSong = null;
+		// Start before handing it over, so the state we commit below already
+		// reflects it rather than waiting on the player's callbacks.
+		if (player != null && mPendingWasPlaying) {
+			player.start();
 		}
+		setMediaPlayer(player);
+		chainNextSong();
 		commitTransaction();
-		onSongChanged(nowPlaying);
+		onSongChanged(song);
+	}
+
+	private final OnPreparedListener mOnNeighbourPrepared = new OnPreparedListener() {
+
+		@Override
+		public void onPrepared(MediaPlayer mp) {
+			mHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					chainNextSong();
+				}
+			});
+			checkCrossfadeSoon();
+		}
+	};
+
+	/*
+	 * If the pool has the next song ready, chain it on to the one that's
+	 * playing so that the MediaPlayer can go from one to the other without a
+	 * gap. It only chains prepared players, so this is tried again whenever
+	 * the queue changes or a neighbour finishes preparing.
+	 */
+	private synchronized void chainNextSong() {
+		PlaylistSupportingPlayer player = peekMediaPlayer();
+		if (player == null) {
+			return;
+		}
+		Song next = getQueue().peek(1);
+		PlaylistSupportingPlayer nextPlayer = null;
+		if (next != null) {
+			nextPlayer = mMediaPlayerPool.peekPlayer(next.getUri());
+		}
+		player.setNextPlayer(nextPlayer == player ? null : nextPlayer);
+	}
+
+	/**
+	 * @return The statistics for the song that's playing so far, or
+	 *         {@code null} if nothing is.
+	 */
+	public synchronized PlaybackStatistics getPlaybackStatistics() {
+		return mStatistics;
+	}
+
+	private void finishStatistics() {
+		if (mStatistics != null) {
+			PlaybackStatistics statistics = mStatistics;
+			Song song = mStatisticsSong;
+			mStatistics = null;
+			mStatisticsSong = null;
+			PlaylistSupportingPlayer player = peekMediaPlayer();
+			if (player != null) {
+				player.setPlaybackStatistics(null);
+			}
+			statistics.finish();
+			Log.d("Finished playing " + song + ": " + statistics);
+			getPlugin().onPlaybackStatistics(song, statistics);
+		}
+	}
+
+	private void cancelPendingPlayer() {
+		if (mPendingPlayer != null) {
+			mPendingPlayer.cancel();
+			mPendingPlayer = null;
+			mPendingSong = null;
+		}
+	}
+
+	private void recycle(PlaylistSupportingPlayer player, Song song) {
+		if (song != null && isNeighbour(song)) {
+			mMediaPlayerPool.recycle(player, song.getUri());
+		} else {
+			mMediaPlayerPool.recycle(player);
+		}
 	}
 
 	@Override
 	public void onNextSongChanged(Song nextSong, Song was) {
-		if (nextSong != null) {
-			mMediaPlayerPool
-					.prepare(getApplicationContext(), nextSong.getUri());
-		}
 		onNextSongChanged(nextSong);
+		chainNextSong();
+		checkCrossfadeSoon();
+	}
+
+	@Override
+	public void onQueueChanged() {
+		// Prepare the farthest neighbours first so that the nearest ones end
+		// up as the most recently requested and are the last to be evicted.
+		for (int i = Math.max(mLookAhead, mLookBehind); i > 0; i--) {
+			if (i <= mLookBehind) {
+				prepareNeighbour(getQueue().peek(-i));
+			}
+			if (i <= mLookAhead) {
+				prepareNeighbour(getQueue().peek(i));
+			}
+		}
+		chainNextSong();
+		checkCrossfadeSoon();
+		updateDownloads();
+		updateHeadCache();
+	}
+
+	private void startDownloader() {
+		long budget = Math.max(0, getResources().getInteger(
+				R.integer.zzz_ph_download_budget)) * 1024L * 1024L;
+		mDownloader = SongDownloader.create(getApplicationContext(), budget,
+				new SongDownloader.Listener() {
+
+					@Override
+					public void onDownloadProgress(final Song song,
+							final long downloaded, final long total) {
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								getPlugin().onDownloadProgress(song,
+										downloaded, total);
+							}
+						});
+					}
+				});
+		// Songs that finish downloading are played from the device from then
+		// on. A player that is already prepared carries on streaming.
+		mMediaPlayerPool.setSourceProvider(new MediaPlayerPool.SourceProvider() {
+
+			@Override
+			public Uri getSource(Uri uri) {
+				return mDownloader.getLocalUri(uri);
+			}
+		});
+	}
+
+	private void updateDownloads() {
+		if (mDownloader == null) {
+			return;
+		}
+		List<Song> wanted = new ArrayList<Song>(mDownloadAhead);
+		for (int i = 1; i <= mDownloadAhead; i++) {
+			Song song = getQueue().peek(i);
+			if (song != null) {
+				wanted.add(song);
+			}
+		}
+		mDownloader.setWanted(wanted);
+	}
+
+	private void updateHeadCache() {
+		if (mHeadPrefetcher == null) {
+			return;
+		}
+		List<Song> wanted = new ArrayList<Song>();
+		Song song;
+		for (int i = 1; wanted.size() < mHeadPrefetcher.getMaxSongs()
+				&& (song = getQueue().peek(i)) != null; i++) {
+			// Downloaded songs already start from the device.
+			if (mDownloader == null
+					|| mDownloader.getLocalUri(song.getUri()) == null) {
+				wanted.add(song);
+			}
+		}
+		mHeadPrefetcher.setWanted(wanted);
+	}
+
+	private void prepareNeighbour(Song song) {
+		Song nowPlaying = nowPlaying();
+		if (song != null
+				&& (nowPlaying == null || !song.getUri().equals(
+						nowPlaying.getUri()))) {
+			mMediaPlayerPool.prepare(getApplicationContext(), song.getUri());
+		}
+	}
+
+	private boolean isNeighbour(Song song) {
+		for (int i = 1; i <= mLookBehind; i++) {
+			if (getQueue().peek(-i) == song) {
+				return true;
+			}
+		}
+		for (int i = 1; i <= mLookAhead; i++) {
+			if (getQueue().peek(i) == song) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
 	public void onCompletion(MediaPlayer mp) {
 		if (peekMediaPlayer() != null && peekMediaPlayer().equals(mp)) {
 			startTransaction();
-			mMediaPlayerPool.recycle(peekMediaPlayer());
+			finishStatistics();
+			PlaylistSupportingPlayer oldPlayer = peekMediaPlayer();
 			setMediaPlayer(null);
+			mMediaPlayerPool.recycle(oldPlayer);
 			onSongFinished(nowPlaying(), PlayerHater.FINISH_SONG_END);
 			getQueue().next();
 		}
@@ -181,8 +546,10 @@ public class PlaybackService extends PlayerHaterService implements
 	public boolean onError(MediaPlayer mp, int what, int extra) {
 		if (peekMediaPlayer() != null && peekMediaPlayer().equals(mp)) {
 			startTransaction();
-			mMediaPlayerPool.recycle(peekMediaPlayer());
+			finishStatistics();
+			PlaylistSupportingPlayer oldPlayer = peekMediaPlayer();
 			setMediaPlayer(null);
+			mMediaPlayerPool.recycle(oldPlayer);
 			onSongFinished(nowPlaying(), PlayerHater.FINISH_ERROR);
 			getQueue().next();
 			return true;
@@ -190,6 +557,119 @@ public class PlaybackService extends PlayerHaterService implements
 		return false;
 	}
 
+	@Override
+	public void onStateChanged(int state) {
+		super.onStateChanged(state);
+		checkCrossfadeSoon();
+	}
+
+	/*
+	 * Crossfading works from the position rather than waiting for
+	 * completion: once the song that's playing is within the crossfade of
+	 * its end, the player the pool has prepared for the next song starts
+	 * underneath it, the queue moves on, and the two are faded across on an
+	 * equal-power curve. Until then there's a single check waiting for the
+	 * moment it's due, which is moved whenever the state changes.
+	 */
+	private void checkCrossfadeSoon() {
+		if (mCrossfade > 0) {
+			mHandler.removeCallbacks(mCheckCrossfade);
+			mHandler.post(mCheckCrossfade);
+		}
+	}
+
+	private final Runnable mCheckCrossfade = new Runnable() {
+
+		@Override
+		public void run() {
+			checkCrossfade();
+		}
+	};
+
+	private final Runnable mEndCrossfade = new Runnable() {
+
+		@Override
+		public void run() {
+			endCrossfade();
+		}
+	};
+
+	private final OnCompletionListener mOnFadedOut = new OnCompletionListener() {
+
+		@Override
+		public void onCompletion(MediaPlayer mp) {
+			mHandler.post(mEndCrossfade);
+		}
+	};
+
+	private synchronized void checkCrossfade() {
+		mHandler.removeCallbacks(mCheckCrossfade);
+		if (mPendingPlayer != null) {
+			// Still on the way; it'll be checked again once it's in place.
+			return;
+		}
+		PlaylistSupportingPlayer player = peekMediaPlayer();
+		if (player == null || player.getState() != StatelyPlayer.STARTED) {
+			// Paused or stalled; the song fading out mustn't carry on alone.
+			endCrossfade();
+			return;
+		}
+		if (mFade.isFading()) {
+			return;
+		}
+		int duration = player.getDuration();
+		if (duration <= 0) {
+			return;
+		}
+		int remaining = duration - player.getCurrentPosition();
+		if (remaining > mCrossfade) {
+			mHandler.postDelayed(mCheckCrossfade, remaining - mCrossfade);
+		} else {
+			startCrossfade(player, remaining);
+		}
+	}
+
+	private void startCrossfade(PlaylistSupportingPlayer player, int remaining) {
+		Song next = getQueue().peek(1);
+		if (next == null) {
+			return;
+		}
+		PlaylistSupportingPlayer nextPlayer = mMediaPlayerPool
+				.peekPlayer(next.getUri());
+		if (nextPlayer == null || nextPlayer == player
+				|| nextPlayer.getState() != StatelyPlayer.PREPARED) {
+			// Not ready in time, so it'll be a cut at completion instead.
+			return;
+		}
+		long duration = Math.max(0, Math.min(mCrossfade, remaining));
+		Log.d("Crossfading into " + next + " over " + duration + "ms");
+		startTransaction();
+		player.setNextPlayer(null);
+		finishStatistics();
+		setMediaPlayer(null);
+		nextPlayer.fadeTo(0, 0, VolumeAutomation.LINEAR);
+		nextPlayer.start();
+		nextPlayer.fadeTo(1.0f, duration, VolumeAutomation.EQUAL_POWER);
+		mFade.start(player, next, duration);
+		player.setOnCompletionListener(mOnFadedOut);
+		onSongFinished(nowPlaying(), PlayerHater.FINISH_SONG_END);
+		// Picks up the next player, already playing, from the pool.
+		getQueue().next();
+		mHandler.postDelayed(mEndCrossfade, duration);
+	}
+
+	private synchronized void endCrossfade() {
+		endCrossfade(mFade.end());
+	}
+
+	private void endCrossfade(PlaylistSupportingPlayer fadedOut) {
+		mHandler.removeCallbacks(mEndCrossfade);
+		if (fadedOut != null) {
+			fadedOut.setOnCompletionListener(null);
+			mMediaPlayerPool.recycle(fadedOut);
+		}
+	}
+
 	@Override
 	public Song getNextSong() {
 		return getQueue().getNextPlaying();
@@ -202,19 +682,39 @@ public class PlaybackService extends PlayerHaterService implements
 		if (oldPlayer != null) {
 			oldPlayer.setOnErrorListener(null);
 			oldPlayer.setOnCompletionListener(null);
+			if (oldPlayer != mediaPlayer) {
+				oldPlayer.setPlaybackStatistics(null);
+			}
 		}
 		super.setMediaPlayer(mediaPlayer);
 		if (mediaPlayer != null) {
 			mediaPlayer.setOnErrorListener(this);
 			mediaPlayer.setOnCompletionListener(this);
+			mediaPlayer.setPlaybackStatistics(mStatistics);
+		}
+	}
+
+	@Override
+	protected synchronized boolean playMediaPlayer() {
+		if (peekMediaPlayer() == null && mPendingPlayer != null) {
+			// Started as soon as it's in place.
+			mPendingWasPlaying = true;
+			return true;
 		}
+		return super.playMediaPlayer();
 	}
 
 	@Override
     synchronized protected PlaylistSupportingPlayer getMediaPlayer() {
+        if (peekMediaPlayer() == null && mPendingPlayer != null) {
+            // Someone needs the player now, so wait for the one on its way.
+            PlayerRequest<PlaylistSupportingPlayer> request = mPendingPlayer;
+            installPendingPlayer(request, request.get());
+        }
         if (peekMediaPlayer() == null) {
             PlaylistSupportingPlayer player = mMediaPlayerPool.getPlayer(getApplicationContext(), nowPlaying().getUri());
             setMediaPlayer(player);
+            chainNextSong();
         }
         return peekMediaPlayer();
     }
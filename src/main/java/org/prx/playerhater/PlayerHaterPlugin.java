@@ -18,6 +18,8 @@ package org.prx.playerhater;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.Song;
 
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
+
 import android.app.PendingIntent;
 import android.content.Context;
 import android.net.Uri;
@@ -317,5 +319,32 @@ public interface PlayerHaterPlugin {
 
 	void onAlbumTitleChanged(String albumTitle);
 
+	/**
+	 * Called when a song stops being the one that's playing, with the quality
+	 * of experience numbers collected while it was: startup time, time to
+	 * first audio, rebuffers, time spent stalled and how the buffer filled.
+	 * 
+	 * @param song
+	 *            The song the statistics are for.
+	 * @param statistics
+	 *            The finished statistics, which won't change any more.
+	 */
+	void onPlaybackStatistics(Song song, PlaybackStatistics statistics);
+
+	/**
+	 * Called as a song coming up in the queue is downloaded for offline
+	 * playback, and once more when it has finished and been verified. Only
+	 * called when downloading ahead is turned on.
+	 * 
+	 * @param song
+	 *            The song being downloaded.
+	 * @param downloaded
+	 *            How many bytes of it are on the device.
+	 * @param total
+	 *            Its size in bytes, equal to {@code downloaded} once it has
+	 *            finished.
+	 */
+	void onDownloadProgress(Song song, long downloaded, long total);
+
     void onPlayerHaterShutdown();
 }
@@ -0,0 +1,775 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.prx.playerhater.R;
+import org.prx.playerhater.util.HttpTransport;
+import org.prx.playerhater.util.Log;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * An HTTP server on the loopback interface that the MediaPlayer can be
+ * pointed at instead of a remote file, so that replaying or seeking back
+ * doesn't download the same bytes again.
+ * <p>
+ * Requests, ranged or not, are answered from the {@link SegmentCache} where
+ * it has the bytes. Where it doesn't, they are fetched from the origin with
+ * a range request, handed on to the player as they arrive, and kept. Files
+ * whose length the origin doesn't give, which means live streams, are
+ * passed straight through without being cached.
+ * <p>
+ * Only single media files are cached. HLS playlists aren't routed here at
+ * all, since their segments are named relative to where the playlist came
+ * from. Anything else that turns out not to be a media file, HLS served
+ * under another name included, gets a redirect back to the origin.
+ * <p>
+ * Range requests to the origin carry If-Range with the validator it gave
+ * when the file was first seen. A response that needs anything from the
+ * origin asks for it before sending a byte, and if the file has changed,
+ * whatever was cached for it is dropped and the response is made from the
+ * new version alone. Should it change part way through a response anyway,
+ * the connection is closed rather than the player being handed two files
+ * spliced together.
+ * <p>
+ * Only urls handed out by {@link #proxy(Uri)} are served, so other apps on
+ * the device can't use this to fetch things. The origin can be any http or
+ * https url, including a server on this device standing in for a real one.
+ */
+public final class CachingProxy {
+
+	private static final String DIRECTORY = "playerhater-proxy";
+	private static final String URL = "url";
+	private static final int MAX_CONNECTIONS = 8;
+	private static final int MAX_LINE = 8 * 1024;
+	private static final int SO_TIMEOUT = 30 * 1000;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final String HLS_EXTENSION = ".m3u8";
+	private static final String[] PLAYLIST_MIME_TYPES = new String[] {
+			"application/vnd.apple.mpegurl", "application/x-mpegurl",
+			"audio/x-mpegurl", "audio/mpegurl", "audio/scpls",
+			"audio/x-scpls" };
+	private static final String[] FILE_MIME_TYPES = new String[] {
+			"application/ogg", "application/octet-stream",
+			"binary/octet-stream" };
+
+	private static CachingProxy sInstance;
+	private static Boolean sEnabled;
+
+	private final SegmentCache mCache;
+	private final String mToken;
+	private ServerSocket mServerSocket;
+	private ExecutorService mWorkers;
+
+	private long mCachedBytes;
+	private long mFetchedBytes;
+
+	/**
+	 * Routes an http or https Uri through the shared proxy, if the proxy is
+	 * turned on in the flags. Anything else, or anything the proxy can't be
+	 * started for, is given back as it is.
+	 */
+	public static Uri route(Context context, Uri uri) {
+		if (!HttpTransport.handles(uri) || isHls(uri) || !isEnabled(context)) {
+			return uri;
+		}
+		return getInstance(context).proxy(uri);
+	}
+
+	public static synchronized CachingProxy getInstance(Context context) {
+		if (sInstance == null) {
+			Context application = context.getApplicationContext();
+			long budget = application.getResources().getInteger(
+					R.integer.zzz_ph_proxy_cache_size) * 1024L * 1024L;
+			sInstance = new CachingProxy(new SegmentCache(new File(
+					application.getCacheDir(), DIRECTORY), budget));
+		}
+		return sInstance;
+	}
+
+	public static synchronized boolean isEnabled(Context context) {
+		if (sEnabled == null) {
+			sEnabled = context.getResources().getBoolean(R.bool.zzz_ph_proxy);
+		}
+		return sEnabled;
+	}
+
+	/**
+	 * Stops the shared proxy if it is running. It starts again the next
+	 * time something is routed through it.
+	 */
+	public static synchronized void stopInstance() {
+		if (sInstance != null) {
+			sInstance.stop();
+		}
+	}
+
+	public CachingProxy(SegmentCache cache) {
+		mCache = cache;
+		mToken = Long.toHexString(new SecureRandom().nextLong());
+	}
+
+	public SegmentCache getCache() {
+		return mCache;
+	}
+
+	/**
+	 * @return The url of an origin file on this proxy, or the origin itself
+	 *         if the proxy couldn't be started.
+	 */
+	public synchronized Uri proxy(Uri origin) {
+		if (!start()) {
+			return origin;
+		}
+		return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort()
+				+ "/" + mToken + "?" + URL + "=" + Uri.encode(origin.toString()));
+	}
+
+	public synchronized void stop() {
+		if (mServerSocket != null) {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				// Closed either way.
+			}
+			mServerSocket = null;
+		}
+		if (mWorkers != null) {
+			mWorkers.shutdownNow();
+			mWorkers = null;
+		}
+	}
+
+	/**
+	 * Makes sure the start of an origin file is cached, fetching whichever
+	 * of its first segments aren't. A player pointed at the file then starts
+	 * from disk, and the rest is fetched while that plays.
+	 * 
+	 * @param bytes
+	 *            How much of the file to have cached, rounded up to whole
+	 *            segments.
+	 * @return {@code false} if the file has no length, which means it is a
+	 *         stream and can't be cached.
+	 */
+	public boolean prefetch(Uri origin, long bytes) throws IOException {
+		String url = origin.toString();
+		Origin source = null;
+		try {
+			SegmentCache.Info info = mCache.getInfo(url);
+			if (info == null) {
+				source = Origin.open(url, 0, null);
+				if (source.mLength < 0 || !isMediaFile(source.mContentType)) {
+					return false;
+				}
+				info = mCache.setInfo(url, source.mLength,
+						source.mContentType, source.mValidator);
+			}
+			byte[] buffer = new byte[SegmentCache.SEGMENT_SIZE];
+			int count = (int) Math.min(info.getSegmentCount(),
+					(bytes + SegmentCache.SEGMENT_SIZE - 1)
+							/ SegmentCache.SEGMENT_SIZE);
+			for (int index = 0; index < count; index++) {
+				if (mCache.getSegment(url, index) != null) {
+					continue;
+				}
+				int segmentLength = info.getSegmentLength(index);
+				source = seek(source, url, (long) index
+						* SegmentCache.SEGMENT_SIZE, info);
+				if (!source.matches(info)) {
+					// Changed since it was cached. Whoever plays it next
+					// starts over.
+					mCache.remove(url);
+					return source.mLength >= 0;
+				}
+				source.readSegment(buffer, segmentLength, 0, 0, null);
+				mCache.putSegment(info, index, buffer, segmentLength);
+				onFetched(segmentLength);
+			}
+			return true;
+		} finally {
+			if (source != null) {
+				source.abort();
+			}
+		}
+	}
+
+	/**
+	 * @return How many bytes have been served from the cache.
+	 */
+	public synchronized long getCachedBytes() {
+		return mCachedBytes;
+	}
+
+	/**
+	 * @return How many bytes have been fetched from origins to be cached.
+	 */
+	public synchronized long getFetchedBytes() {
+		return mFetchedBytes;
+	}
+
+	private boolean start() {
+		if (mServerSocket != null) {
+			return true;
+		}
+		final ServerSocket serverSocket;
+		try {
+			serverSocket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+		} catch (IOException e) {
+			Log.e("Could not start the caching proxy", e);
+			return false;
+		}
+		final ExecutorService workers = new ThreadPoolExecutor(0,
+				MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"PlayerHater/CachingProxy");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						// Stopped.
+						return;
+					}
+					try {
+						workers.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						close(socket);
+					}
+				}
+			}
+		}, "PlayerHater/CachingProxy");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		mServerSocket = serverSocket;
+		mWorkers = workers;
+		return true;
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(SO_TIMEOUT);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+			String[] request = readLine(in).split(" ");
+			String range = null;
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0
+						&& line.substring(0, colon).trim()
+								.equalsIgnoreCase("Range")) {
+					range = line.substring(colon + 1).trim();
+				}
+			}
+			if (request.length < 2) {
+				writeHeaders(out, "400 Bad Request");
+				return;
+			}
+			Uri target = Uri.parse(request[1]);
+			String url = target.getQueryParameter(URL);
+			if (!("/" + mToken).equals(target.getPath()) || url == null) {
+				writeHeaders(out, "404 Not Found");
+			} else if (request[0].equals("GET")) {
+				respond(url, range, false, out);
+			} else if (request[0].equals("HEAD")) {
+				respond(url, range, true, out);
+			} else {
+				writeHeaders(out, "405 Method Not Allowed");
+			}
+		} catch (IOException e) {
+			// The player went away, or the origin did.
+		} finally {
+			close(socket);
+		}
+	}
+
+	void respond(String url, String range, boolean head, OutputStream out)
+			throws IOException {
+		long start = 0;
+		long end = -1;
+		long suffix = -1;
+		boolean ranged = false;
+		if (range != null && range.startsWith("bytes=")
+				&& range.indexOf(',') == -1) {
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+			try {
+				if (dash == 0) {
+					suffix = Long.parseLong(spec.substring(1));
+					ranged = true;
+				} else if (dash > 0) {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash + 1 < spec.length()) {
+						end = Long.parseLong(spec.substring(dash + 1));
+					}
+					ranged = true;
+				}
+			} catch (NumberFormatException e) {
+				start = 0;
+				end = -1;
+				suffix = -1;
+			}
+		}
+
+		Origin origin = null;
+		try {
+			SegmentCache.Info info = mCache.getInfo(url);
+			if (info == null) {
+				origin = Origin.open(url, suffix < 0 ? segmentStart(start)
+						: 0, null);
+				if (!isMediaFile(origin.mContentType)) {
+					// A playlist, most likely; the player has to fetch it
+					// from where it really is.
+					writeHeaders(out, "302 Found", "Location: " + url);
+					return;
+				}
+				if (origin.mLength < 0) {
+					passThrough(origin, head, out);
+					return;
+				}
+				info = mCache.setInfo(url, origin.mLength,
+						origin.mContentType, origin.mValidator);
+			}
+			long length = info.getLength();
+			if (suffix >= 0) {
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			}
+			if (end < 0 || end >= length) {
+				end = length - 1;
+			}
+			if (start >= length || start > end) {
+				writeHeaders(out, "416 Requested Range Not Satisfiable",
+						"Content-Range: bytes */" + length);
+				return;
+			}
+			if (origin == null) {
+				// Checked before anything is sent, so that the player never
+				// gets the start of one version and the rest of another.
+				origin = openFirstMissing(url, info, start, end);
+				if (origin != null && !origin.matches(info)) {
+					mCache.remove(url);
+					origin.abort();
+					origin = null;
+					respond(url, range, head, out);
+					return;
+				}
+			}
+
+			String contentType = info.getContentType() == null ? ""
+					: "Content-Type: " + info.getContentType();
+			if (ranged) {
+				writeHeaders(out, "206 Partial Content", contentType,
+						"Accept-Ranges: bytes", "Content-Length: "
+								+ (end - start + 1), "Content-Range: bytes "
+								+ start + "-" + end + "/" + length);
+			} else {
+				writeHeaders(out, "200 OK", contentType,
+						"Accept-Ranges: bytes", "Content-Length: " + length);
+			}
+			if (head) {
+				return;
+			}
+
+			byte[] buffer = new byte[SegmentCache.SEGMENT_SIZE];
+			int first = (int) (start / SegmentCache.SEGMENT_SIZE);
+			int last = (int) (end / SegmentCache.SEGMENT_SIZE);
+			for (int index = first; index <= last; index++) {
+				long segmentStart = (long) index * SegmentCache.SEGMENT_SIZE;
+				int segmentLength = info.getSegmentLength(index);
+				int from = (int) Math.max(0, start - segmentStart);
+				int to = (int) Math.min(segmentLength, end + 1 - segmentStart);
+
+				if (readSegment(url, index, buffer, from, to)) {
+					out.write(buffer, from, to - from);
+					out.flush();
+					onCached(to - from);
+					continue;
+				}
+				origin = seek(origin, url, segmentStart, info);
+				if (!origin.matches(info)) {
+					// Changed since this response began. Closing the
+					// connection makes the player ask again, and the next
+					// answer is all the new version.
+					mCache.remove(url);
+					throw new IOException(url + " changed while being served");
+				}
+				origin.readSegment(buffer, segmentLength, from, to, out);
+				mCache.putSegment(info, index, buffer, segmentLength);
+				onFetched(segmentLength);
+			}
+			out.flush();
+		} finally {
+			if (origin != null) {
+				origin.abort();
+			}
+		}
+	}
+
+	/*
+	 * The origin opened at the first segment of a range that isn't cached,
+	 * or null if all of it is.
+	 */
+	private Origin openFirstMissing(String url, SegmentCache.Info info,
+			long start, long end) throws IOException {
+		int first = (int) (start / SegmentCache.SEGMENT_SIZE);
+		int last = (int) (end / SegmentCache.SEGMENT_SIZE);
+		for (int index = first; index <= last; index++) {
+			if (mCache.getSegment(url, index) == null) {
+				return Origin.open(url, (long) index
+						* SegmentCache.SEGMENT_SIZE, info.getValidator());
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * An origin response positioned at the start of a segment, reusing the
+	 * one there is if it's already there. It may turn out to be for a
+	 * different version of the file than info describes.
+	 */
+	private static Origin seek(Origin origin, String url, long position,
+			SegmentCache.Info info) throws IOException {
+		if (origin != null && origin.mPosition == position) {
+			return origin;
+		}
+		if (origin != null) {
+			origin.abort();
+		}
+		return Origin.open(url, position, info.getValidator());
+	}
+
+	/*
+	 * Reads part of a cached segment, if it's there and can be read in full.
+	 */
+	private boolean readSegment(String url, int index, byte[] buffer,
+			int from, int to) {
+		File file = mCache.getSegment(url, index);
+		if (file == null) {
+			return false;
+		}
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			long skipped = 0;
+			while (skipped < from) {
+				long skip = in.skip(from - skipped);
+				if (skip <= 0) {
+					return false;
+				}
+				skipped += skip;
+			}
+			int position = from;
+			while (position < to) {
+				int read = in.read(buffer, position, to - position);
+				if (read == -1) {
+					return false;
+				}
+				position += read;
+			}
+			return true;
+		} catch (IOException e) {
+			// Evicted since it was looked up.
+			return false;
+		} finally {
+			SegmentCache.close(in);
+		}
+	}
+
+	private static void passThrough(Origin origin, boolean head,
+			OutputStream out) throws IOException {
+		writeHeaders(out, "200 OK", origin.mContentType == null ? ""
+				: "Content-Type: " + origin.mContentType);
+		if (head) {
+			return;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = origin.mIn.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			out.flush();
+		}
+	}
+
+	private static boolean isHls(Uri uri) {
+		String path = uri.getPath();
+		return path != null && path.toLowerCase().endsWith(HLS_EXTENSION);
+	}
+
+	/*
+	 * Whether a response with this content type is a file that plays on its
+	 * own. One with no content type is given the benefit of the doubt, as
+	 * playlists have been resolved by the time anything is routed here.
+	 */
+	static boolean isMediaFile(String contentType) {
+		if (contentType == null) {
+			return true;
+		}
+		String mimeType = contentType.split(";")[0].trim().toLowerCase();
+		if (mimeType.length() == 0) {
+			return true;
+		}
+		for (String playlist : PLAYLIST_MIME_TYPES) {
+			if (mimeType.equals(playlist)) {
+				return false;
+			}
+		}
+		for (String file : FILE_MIME_TYPES) {
+			if (mimeType.equals(file)) {
+				return true;
+			}
+		}
+		return mimeType.startsWith("audio/") || mimeType.startsWith("video/");
+	}
+
+	private synchronized void onCached(long bytes) {
+		mCachedBytes += bytes;
+	}
+
+	private synchronized void onFetched(long bytes) {
+		mFetchedBytes += bytes;
+	}
+
+	private static long segmentStart(long position) {
+		return position - position % SegmentCache.SEGMENT_SIZE;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException();
+			} else if (line.size() >= MAX_LINE) {
+				throw new IOException("Line too long");
+			} else if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return line.toString("US-ASCII");
+	}
+
+	private static void writeHeaders(OutputStream out, String status,
+			String... headers) throws IOException {
+		StringBuilder builder = new StringBuilder("HTTP/1.1 ").append(status)
+				.append("\r\n");
+		for (String header : headers) {
+			if (header.length() > 0) {
+				builder.append(header).append("\r\n");
+			}
+		}
+		builder.append("Connection: close\r\n\r\n");
+		out.write(builder.toString().getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more to be done.
+		}
+	}
+
+	/*
+	 * A response from the origin, read from a known position onwards.
+	 */
+	private static final class Origin {
+		private final HttpGet mRequest;
+		private final InputStream mIn;
+		private final long mLength;
+		private final String mContentType;
+		private final String mValidator;
+		private long mPosition;
+
+		private Origin(HttpGet request, InputStream in, long length,
+				String contentType, String validator, long position) {
+			mRequest = request;
+			mIn = in;
+			mLength = length;
+			mContentType = contentType;
+			mValidator = validator;
+			mPosition = position;
+		}
+
+		/*
+		 * Opens the file from offset onwards. With a validator, the origin
+		 * is asked for the whole file instead if it has changed since.
+		 */
+		static Origin open(String url, long offset, String validator)
+				throws IOException {
+			HttpGet request = new HttpGet(url);
+			request.addHeader("Range", "bytes=" + offset + "-");
+			if (validator != null) {
+				request.addHeader("If-Range", validator);
+			}
+			HttpResponse response = HttpTransport.execute(request);
+			int status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			long length = -1;
+			long position = 0;
+			if (status == 206 && entity != null) {
+				Header contentRange = response.getFirstHeader("Content-Range");
+				String value = contentRange == null ? "" : contentRange
+						.getValue();
+				int space = value.indexOf(' ');
+				int dash = value.indexOf('-');
+				int slash = value.indexOf('/');
+				try {
+					position = Long.parseLong(value.substring(space + 1, dash)
+							.trim());
+					length = Long.parseLong(value.substring(slash + 1).trim());
+				} catch (RuntimeException e) {
+					request.abort();
+					throw new IOException("Bad Content-Range from " + url);
+				}
+			} else if (status == 200 && entity != null) {
+				length = entity.getContentLength();
+			} else {
+				request.abort();
+				throw new IOException("HTTP " + status + " from " + url);
+			}
+			Header contentType = response.getFirstHeader("Content-Type");
+			Origin origin = new Origin(request, entity.getContent(), length,
+					contentType == null ? null : contentType.getValue(),
+					validatorOf(response), position);
+			// An origin that ignored the range starts at the beginning.
+			try {
+				origin.skipTo(offset);
+			} catch (IOException e) {
+				request.abort();
+				throw e;
+			}
+			return origin;
+		}
+
+		/*
+		 * Reads the next segment into the buffer, writing the part of it
+		 * from "from" to "to" out as it arrives. Nothing is written, and out
+		 * can be null, when they are the same.
+		 */
+		void readSegment(byte[] buffer, int length, int from, int to,
+				OutputStream out) throws IOException {
+			int filled = 0;
+			int written = from;
+			while (filled < length) {
+				int read = mIn.read(buffer, filled, length - filled);
+				if (read == -1) {
+					throw new EOFException();
+				}
+				filled += read;
+				mPosition += read;
+				if (filled > written && written < to) {
+					int count = Math.min(filled, to) - written;
+					out.write(buffer, written, count);
+					out.flush();
+					written += count;
+				}
+			}
+		}
+
+		/*
+		 * Whether this is the version of the file info describes.
+		 */
+		boolean matches(SegmentCache.Info info) {
+			if (mLength != info.getLength()) {
+				return false;
+			}
+			return info.getValidator() == null
+					|| info.getValidator().equals(mValidator);
+		}
+
+		void abort() {
+			mRequest.abort();
+		}
+
+		/*
+		 * A strong ETag, or failing that the Last-Modified date, which are
+		 * the only things If-Range can be given.
+		 */
+		private static String validatorOf(HttpResponse response) {
+			Header etag = response.getFirstHeader("ETag");
+			if (etag != null && !etag.getValue().startsWith("W/")) {
+				return etag.getValue();
+			}
+			Header lastModified = response.getFirstHeader("Last-Modified");
+			return lastModified == null ? null : lastModified.getValue();
+		}
+
+		private void skipTo(long offset) throws IOException {
+			if (mPosition > offset) {
+				throw new IOException("Origin started after " + offset);
+			}
+			while (mPosition < offset) {
+				long skipped = mIn.skip(offset - mPosition);
+				if (skipped <= 0) {
+					if (mIn.read() == -1) {
+						throw new EOFException();
+					}
+					skipped = 1;
+				}
+				mPosition += skipped;
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.net.Uri;
+
+/**
+ * Many short clips, like promos, station IDs and intros, stored one after
+ * the other in a single file.
+ * <p>
+ * Playing a clip hands the MediaPlayer the pack's file descriptor along with
+ * where the clip starts and how long it is, so the pack is only opened once
+ * however many of its clips are played. A clip is named by the pack's file
+ * Uri with the clip's name as the fragment, as made by
+ * {@link #getUri(File, String)}, and can be queued like any other song.
+ * <p>
+ * A pack starts with a header listing every clip's name, offset and length,
+ * and the clips follow it byte for byte as they were written. Clips have to
+ * be in a format the MediaPlayer can play from part of a file, which
+ * includes MP3, AAC and Ogg.
+ */
+public final class ClipPack implements Closeable {
+
+	private static final int MAGIC = 0x5048504b; // "PHPK"
+	private static final int FORMAT_VERSION = 1;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final Map<File, ClipPack> sOpen = new HashMap<File, ClipPack>();
+	// Packs replaced on disk while open. Players may still be reading them.
+	private static final List<ClipPack> sRetired = new ArrayList<ClipPack>();
+
+	/**
+	 * Where one clip is in its pack.
+	 */
+	public static final class Clip {
+		private final ClipPack mPack;
+		private final String mName;
+		private final long mOffset;
+		private final long mLength;
+
+		Clip(ClipPack pack, String name, long offset, long length) {
+			mPack = pack;
+			mName = name;
+			mOffset = offset;
+			mLength = length;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long getOffset() {
+			return mOffset;
+		}
+
+		public long getLength() {
+			return mLength;
+		}
+
+		public FileDescriptor getFileDescriptor() throws IOException {
+			return mPack.mIn.getFD();
+		}
+	}
+
+	private final File mFile;
+	private final long mLastModified;
+	private final FileInputStream mIn;
+	private final Map<String, Clip> mClips;
+
+	private ClipPack(File file, long lastModified, FileInputStream in,
+			Map<String, Clip> clips) {
+		mFile = file;
+		mLastModified = lastModified;
+		mIn = in;
+		mClips = clips;
+	}
+
+	/**
+	 * Reads a pack's header, keeping the file open for its clips to be
+	 * played from.
+	 */
+	public static ClipPack open(File file) throws IOException {
+		long lastModified = file.lastModified();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			// Not closed: that would close the descriptor clips play from.
+			DataInputStream header = new DataInputStream(
+					new BufferedInputStream(in));
+			if (header.readInt() != MAGIC) {
+				throw new IOException(file + " is not a clip pack");
+			} else if (header.readInt() != FORMAT_VERSION) {
+				throw new IOException(file + " is a newer clip pack");
+			}
+			long size = file.length();
+			int count = header.readInt();
+			Map<String, Clip> clips = new LinkedHashMap<String, Clip>(count);
+			ClipPack pack = new ClipPack(file, lastModified, in, clips);
+			for (int i = 0; i < count; i++) {
+				String name = header.readUTF();
+				long offset = header.readLong();
+				long length = header.readLong();
+				if (offset < 0 || length < 0 || offset + length > size) {
+					throw new IOException("Clip " + name + " is outside "
+							+ file);
+				}
+				clips.put(name, new Clip(pack, name, offset, length));
+			}
+			return pack;
+		} catch (IOException e) {
+			SegmentCache.close(in);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a pack of clips, replacing whatever is at {@code file}.
+	 *
+	 * @param clips
+	 *            The files to pack, by the names they will be played by, in
+	 *            the order they will be stored.
+	 */
+	public static void write(File file, Map<String, File> clips)
+			throws IOException {
+		// Every entry's offset is a long, so the header's size is known
+		// before any offsets are.
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		DataOutputStream namesOut = new DataOutputStream(names);
+		for (String name : clips.keySet()) {
+			namesOut.writeUTF(name);
+		}
+		long offset = 3 * 4 + names.size() + clips.size() * 2 * 8;
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(clips.size());
+			for (Map.Entry<String, File> clip : clips.entrySet()) {
+				long length = clip.getValue().length();
+				out.writeUTF(clip.getKey());
+				out.writeLong(offset);
+				out.writeLong(length);
+				offset += length;
+			}
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (File clip : clips.values()) {
+				copy(clip, out, buffer);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		} finally {
+			SegmentCache.close(out);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return A Uri that plays the named clip of a pack.
+	 */
+	public static Uri getUri(File pack, String name) {
+		return Uri.fromFile(pack).buildUpon().fragment(name).build();
+	}
+
+	/**
+	 * @return Whether a Uri names a clip in a pack rather than a whole file.
+	 */
+	public static boolean isClip(Uri uri) {
+		return "file".equals(uri.getScheme()) && uri.getFragment() != null;
+	}
+
+	/**
+	 * Finds the clip a Uri names. Its pack is opened the first time, and
+	 * opened again if the file has changed since.
+	 *
+	 * @throws FileNotFoundException
+	 *             If the pack has no clip by that name.
+	 */
+	public static Clip getClip(Uri uri) throws IOException {
+		ClipPack pack = getShared(new File(uri.getPath()));
+		Clip clip = pack.getClip(uri.getFragment());
+		if (clip == null) {
+			throw new FileNotFoundException("No clip " + uri.getFragment()
+					+ " in " + pack.mFile);
+		}
+		return clip;
+	}
+
+	/**
+	 * Closes every pack {@link #getClip(Uri)} has opened. Players that have
+	 * already been given a clip keep playing it.
+	 */
+	public static synchronized void closeAll() {
+		for (ClipPack pack : sOpen.values()) {
+			pack.close();
+		}
+		for (ClipPack pack : sRetired) {
+			pack.close();
+		}
+		sOpen.clear();
+		sRetired.clear();
+	}
+
+	private static synchronized ClipPack getShared(File file)
+			throws IOException {
+		ClipPack pack = sOpen.get(file);
+		if (pack != null && pack.mLastModified == file.lastModified()) {
+			return pack;
+		}
+		ClipPack opened = open(file);
+		if (pack != null) {
+			sRetired.add(pack);
+		}
+		sOpen.put(file, opened);
+		return opened;
+	}
+
+	/**
+	 * @return The named clip, or {@code null} if there isn't one.
+	 */
+	public Clip getClip(String name) {
+		return mClips.get(name);
+	}
+
+	public Set<String> getClipNames() {
+		return Collections.unmodifiableSet(mClips.keySet());
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	@Override
+	public void close() {
+		SegmentCache.close(mIn);
+	}
+
+	private static void copy(File file, DataOutputStream out, byte[] buffer)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			long remaining = file.length();
+			while (remaining > 0) {
+				int read = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (read == -1) {
+					throw new IOException(file + " got shorter while packing");
+				}
+				out.write(buffer, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			SegmentCache.close(in);
+		}
+	}
+}
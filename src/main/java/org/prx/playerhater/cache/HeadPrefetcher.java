@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.prx.playerhater.Song;
+import org.prx.playerhater.util.HttpTransport;
+import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.PlaylistParser;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Keeps the first few seconds of each queued song in the
+ * {@link CachingProxy}'s cache, so that starting one plays from disk straight
+ * away and only the rest of it waits on the network.
+ * <p>
+ * Playlists are resolved the same way the player resolves them, so it's the
+ * file that will actually be played that gets cached. Songs are fetched one
+ * at a time, in queue order, on a single low priority thread. Only as many
+ * songs as fit in a quarter of the cache are kept, so that the song that's
+ * playing still has room.
+ */
+public final class HeadPrefetcher {
+
+	// Files aren't looked at before they're fetched, so seconds are turned
+	// into bytes at a typical bitrate for spoken word and music.
+	private static final int ASSUMED_BITRATE = 128 * 1000;
+	private static final int MAX_DEPTH = 3;
+
+	private final Context mContext;
+	private final CachingProxy mProxy;
+	private final long mBytes;
+	private final int mMaxSongs;
+	private final ExecutorService mExecutor;
+	// Uris with no length, which are streams rather than files.
+	private final Set<Uri> mStreams = new HashSet<Uri>();
+	private Future<?> mPass;
+
+	/**
+	 * @param seconds
+	 *            How much of the start of each song to keep.
+	 */
+	public static HeadPrefetcher create(Context context, int seconds) {
+		return new HeadPrefetcher(context, CachingProxy.getInstance(context),
+				(long) seconds * ASSUMED_BITRATE / 8);
+	}
+
+	/**
+	 * @param bytes
+	 *            How much of the start of each song to keep, rounded up to
+	 *            whole segments.
+	 */
+	public HeadPrefetcher(Context context, CachingProxy proxy, long bytes) {
+		mContext = context.getApplicationContext();
+		mProxy = proxy;
+		long segments = Math.max(1, (bytes + SegmentCache.SEGMENT_SIZE - 1)
+				/ SegmentCache.SEGMENT_SIZE);
+		mBytes = segments * SegmentCache.SEGMENT_SIZE;
+		mMaxSongs = (int) Math.max(1, proxy.getCache().getBudget() / 4
+				/ mBytes);
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PlayerHater/HeadPrefetcher");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return How many songs at most have their start kept at once.
+	 */
+	public int getMaxSongs() {
+		return mMaxSongs;
+	}
+
+	/**
+	 * Says which songs should have their start cached, soonest to play
+	 * first. Whatever was being fetched for the last list stops, and only
+	 * the first {@link #getMaxSongs()} are looked at.
+	 */
+	public synchronized void setWanted(List<Song> songs) {
+		if (mPass != null) {
+			mPass.cancel(true);
+		}
+		final List<Uri> uris = new ArrayList<Uri>(Math.min(songs.size(),
+				mMaxSongs));
+		for (Song song : songs) {
+			if (uris.size() >= mMaxSongs) {
+				break;
+			}
+			if (HttpTransport.handles(song.getUri())) {
+				uris.add(song.getUri());
+			}
+		}
+		mPass = mExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Uri uri : uris) {
+					if (Thread.currentThread().isInterrupted()) {
+						return;
+					}
+					prefetch(uri);
+				}
+			}
+		});
+	}
+
+	public synchronized void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	private void prefetch(Uri uri) {
+		Uri file = resolve(uri);
+		if (file == null || isStream(file)) {
+			return;
+		}
+		try {
+			if (!mProxy.prefetch(file, mBytes)) {
+				synchronized (this) {
+					mStreams.add(file);
+				}
+			}
+		} catch (IOException e) {
+			Log.d("Could not cache the start of " + file + ": " + e);
+		}
+	}
+
+	/*
+	 * The file a song's Uri ends up playing first, following playlists, or
+	 * null if it doesn't lead to anything that can be cached.
+	 */
+	private Uri resolve(Uri uri) {
+		for (int depth = 0; depth < MAX_DEPTH; depth++) {
+			if (!HttpTransport.handles(uri) || isStream(uri)) {
+				return null;
+			}
+			Uri[] uris;
+			try {
+				uris = PlaylistParser.parsePlaylist(mContext, uri, null);
+			} catch (IOException e) {
+				Log.d("Could not resolve " + uri + ": " + e);
+				return null;
+			}
+			if (uris.length == 0) {
+				return null;
+			} else if (uris[0].equals(uri)) {
+				return uri;
+			}
+			uri = uris[0];
+		}
+		return null;
+	}
+
+	private synchronized boolean isStream(Uri uri) {
+		return mStreams.contains(uri);
+	}
+}
@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.prx.playerhater.util.Log;
+
+/**
+ * Pieces of remote files kept on disk, so that bytes that have been fetched
+ * once needn't be fetched again.
+ * <p>
+ * Every file is cut into segments of {@link #SEGMENT_SIZE} bytes, and each
+ * segment is stored on its own once it has been fetched in full. A file can
+ * therefore be cached with holes in it, wherever nobody has listened yet.
+ * When the segments add up to more than the budget, the ones used longest
+ * ago are deleted first.
+ * <p>
+ * Files are identified by their url. Alongside the segments, each file's
+ * length, content type and validator (a strong ETag or its Last-Modified
+ * date) are kept, and a file whose length or validator changes is treated
+ * as a new one.
+ */
+public final class SegmentCache {
+
+	public static final int SEGMENT_SIZE = 256 * 1024;
+
+	private static final String INFO = "info";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * What is known about a cached file as a whole.
+	 */
+	public static final class Info {
+		private final String mUrl;
+		private final long mLength;
+		private final String mContentType;
+		private final String mValidator;
+
+		Info(String url, long length, String contentType, String validator) {
+			mUrl = url;
+			mLength = length;
+			mContentType = contentType;
+			mValidator = validator;
+		}
+
+		public long getLength() {
+			return mLength;
+		}
+
+		/**
+		 * @return The content type the origin gave, or {@code null}.
+		 */
+		public String getContentType() {
+			return mContentType;
+		}
+
+		/**
+		 * @return What to send as If-Range so that the origin only answers
+		 *         a range of the same file, or {@code null} if it gave
+		 *         nothing to tell versions apart by.
+		 */
+		public String getValidator() {
+			return mValidator;
+		}
+
+		/**
+		 * @return How many segments the file is cut into.
+		 */
+		public int getSegmentCount() {
+			return (int) ((mLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		}
+
+		/**
+		 * @return How long the given segment is. Only the last is short.
+		 */
+		public int getSegmentLength(int index) {
+			return (int) Math.min(SEGMENT_SIZE, mLength - (long) index
+					* SEGMENT_SIZE);
+		}
+	}
+
+	private final File mDirectory;
+	private final long mBudget;
+	private final Map<String, Info> mInfo = new HashMap<String, Info>();
+	// Every segment on disk and its size, least recently used first.
+	private final LinkedHashMap<File, Long> mSegments = new LinkedHashMap<File, Long>(
+			64, 0.75f, true);
+	private long mSize;
+	private boolean mLoaded;
+
+	/**
+	 * @param budget
+	 *            How many bytes of segments to keep at most.
+	 */
+	public SegmentCache(File directory, long budget) {
+		mDirectory = directory;
+		mBudget = budget;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * @return How many bytes of segments are held.
+	 */
+	public synchronized long getSize() {
+		load();
+		return mSize;
+	}
+
+	/**
+	 * @return What is known about a file, or {@code null} if it has never
+	 *         been seen.
+	 */
+	public synchronized Info getInfo(String url) {
+		load();
+		String key = key(url);
+		Info info = mInfo.get(key);
+		if (info == null) {
+			info = readInfo(url, new File(mDirectory, key));
+			if (info != null) {
+				mInfo.put(key, info);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Records what the origin says about a file. If it used to be a
+	 * different length or version, or nothing was known about it, the
+	 * segments held for it are thrown away.
+	 */
+	public synchronized Info setInfo(String url, long length,
+			String contentType, String validator) {
+		Info old = getInfo(url);
+		if (old != null && old.mLength == length
+				&& equal(old.mValidator, validator)) {
+			return old;
+		}
+		String key = key(url);
+		File directory = new File(mDirectory, key);
+		removeSegments(directory);
+		Info info = new Info(url, length, contentType, validator);
+		mInfo.put(key, info);
+		writeInfo(directory, info);
+		return info;
+	}
+
+	/**
+	 * @return The file holding a segment, or {@code null} if it isn't
+	 *         cached. It might still be evicted before it is read.
+	 */
+	public synchronized File getSegment(String url, int index) {
+		load();
+		File file = segmentFile(url, index);
+		if (mSegments.get(file) == null) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Stores a segment that has been fetched in full, evicting others if
+	 * that takes the cache over budget. Nothing is stored if the file has
+	 * been replaced or removed since {@code info} was had for it, so one
+	 * version's segments never end up alongside another's.
+	 */
+	public void putSegment(Info info, int index, byte[] data, int length) {
+		String url = info.mUrl;
+		synchronized (this) {
+			// Before writing, so that loading can't sweep up the temp file.
+			load();
+		}
+		File file = segmentFile(url, index);
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			return;
+		}
+		// Named uniquely, as the same segment can be fetched by two
+		// connections at once.
+		File temp = null;
+		FileOutputStream out = null;
+		try {
+			temp = File.createTempFile("segment", TEMP_SUFFIX, directory);
+			out = new FileOutputStream(temp);
+			out.write(data, 0, length);
+			out.close();
+			out = null;
+			synchronized (this) {
+				if (mInfo.get(key(url)) != info || !temp.renameTo(file)) {
+					temp.delete();
+					return;
+				}
+				Long old = mSegments.put(file, (long) length);
+				mSize += length - (old == null ? 0 : old);
+				trim();
+			}
+		} catch (IOException e) {
+			Log.e("Could not cache segment " + index + " of " + url, e);
+			if (temp != null) {
+				temp.delete();
+			}
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Throws away everything held for a file.
+	 */
+	public synchronized void remove(String url) {
+		load();
+		String key = key(url);
+		File directory = new File(mDirectory, key);
+		removeSegments(directory);
+		mInfo.remove(key);
+		new File(directory, INFO).delete();
+		directory.delete();
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<File, Long>> iterator = mSegments.entrySet()
+				.iterator();
+		while (mSize > mBudget && iterator.hasNext()) {
+			Map.Entry<File, Long> eldest = iterator.next();
+			eldest.getKey().delete();
+			mSize -= eldest.getValue();
+			iterator.remove();
+		}
+	}
+
+	private void removeSegments(File directory) {
+		Iterator<Map.Entry<File, Long>> iterator = mSegments.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<File, Long> entry = iterator.next();
+			if (entry.getKey().getParentFile().equals(directory)) {
+				entry.getKey().delete();
+				mSize -= entry.getValue();
+				iterator.remove();
+			}
+		}
+	}
+
+	/*
+	 * Finds what is already on disk the first time it is needed, oldest
+	 * first so that the least recently used order carries over.
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		File[] directories = mDirectory.listFiles();
+		if (directories == null) {
+			return;
+		}
+		List<File> segments = new ArrayList<File>();
+		for (File directory : directories) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (file.getName().endsWith(TEMP_SUFFIX)) {
+					file.delete();
+				} else if (!file.getName().equals(INFO)) {
+					segments.add(file);
+				}
+			}
+		}
+		Collections.sort(segments, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long difference = lhs.lastModified() - rhs.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File segment : segments) {
+			mSegments.put(segment, segment.length());
+			mSize += segment.length();
+		}
+		trim();
+	}
+
+	private File segmentFile(String url, int index) {
+		return new File(new File(mDirectory, key(url)),
+				Integer.toString(index));
+	}
+
+	private static Info readInfo(String url, File directory) {
+		File file = new File(directory, INFO);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(url)) {
+				return null;
+			}
+			long length = in.readLong();
+			String contentType = in.readBoolean() ? in.readUTF() : null;
+			String validator = in.readBoolean() ? in.readUTF() : null;
+			return new Info(url, length, contentType, validator);
+		} catch (IOException e) {
+			Log.e("Could not read cache info for " + url, e);
+			file.delete();
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private static void writeInfo(File directory, Info info) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			return;
+		}
+		File file = new File(directory, INFO);
+		File temp = new File(directory, INFO + TEMP_SUFFIX);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(info.mUrl);
+			out.writeLong(info.mLength);
+			out.writeBoolean(info.mContentType != null);
+			if (info.mContentType != null) {
+				out.writeUTF(info.mContentType);
+			}
+			out.writeBoolean(info.mValidator != null);
+			if (info.mValidator != null) {
+				out.writeUTF(info.mValidator);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			Log.e("Could not write cache info for " + info.mUrl, e);
+			temp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/*
+	 * A name for a url that is safe to use as a file name.
+	 */
+	static String key(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder builder = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+				builder.append(Character.forDigit(b & 0xF, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-1");
+		} catch (IOException e) {
+			throw new IllegalStateException("No UTF-8");
+		}
+	}
+
+	private static boolean equal(String lhs, String rhs) {
+		return lhs == null ? rhs == null : lhs.equals(rhs);
+	}
+
+	static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing more to be done.
+			}
+		}
+	}
+}
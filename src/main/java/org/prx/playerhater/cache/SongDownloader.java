@@ -0,0 +1,554 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.prx.playerhater.Song;
+import org.prx.playerhater.util.HttpTransport;
+import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.PlaylistParser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Downloads the songs coming up in the queue in full, so that they can be
+ * played without a connection.
+ * <p>
+ * Playlists are resolved the same way the player resolves them, and it's
+ * the file a song plays that is downloaded. A song that plays several files
+ * one after the other, or something that isn't a media file, like an HLS
+ * playlist, isn't downloaded at all.
+ * <p>
+ * Only a few downloads run at once. A download that is interrupted, or is
+ * no longer wanted, keeps what it has and picks up from there with a range
+ * request the next time it's wanted. If the file changed on the server in
+ * the meantime, it starts again. A finished download is checked against the
+ * length the server gave and, where the server sent one, its Content-MD5,
+ * before it is used.
+ * <p>
+ * Everything downloaded, finished or not, is kept within a storage budget.
+ * To make room, the least recently used files that aren't wanted are
+ * deleted. When that isn't enough, the download waits until it's wanted
+ * again.
+ */
+public final class SongDownloader {
+
+	/**
+	 * Hears how downloads are going, on the thread doing the download.
+	 */
+	public interface Listener {
+		/**
+		 * @param total
+		 *            The size of the song, or {@code -1} if it isn't known.
+		 *            A download has finished when this equals
+		 *            {@code downloaded}.
+		 */
+		void onDownloadProgress(Song song, long downloaded, long total);
+	}
+
+	private static final String DIRECTORY = "playerhater-downloads";
+	private static final String PART_SUFFIX = ".part";
+	private static final String INFO_SUFFIX = ".info";
+	private static final int PARALLEL_DOWNLOADS = 2;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final long PROGRESS_INTERVAL = 500;
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAX_DEPTH = 3;
+
+	private final Context mContext;
+	private final File mDirectory;
+	private final long mBudget;
+	private final Listener mListener;
+	private final ExecutorService mExecutor;
+	private final Map<Uri, Download> mDownloads = new HashMap<Uri, Download>();
+	// Uris with no length, which are streams rather than files.
+	private final Set<Uri> mUndownloadable = new HashSet<Uri>();
+	private final Set<Uri> mWanted = new HashSet<Uri>();
+	// The whole size each running download has made room for, which its
+	// .part file only reaches at the end, and the running total of them.
+	private final Map<Download, Long> mReserved = new HashMap<Download, Long>();
+	private long mReservedBytes;
+
+	public static SongDownloader create(Context context, long budget,
+			Listener listener) {
+		Context application = context.getApplicationContext();
+		return new SongDownloader(application, new File(
+				application.getFilesDir(), DIRECTORY), budget, listener);
+	}
+
+	/**
+	 * @param context
+	 *            Used to cache playlists as they are resolved, or
+	 *            {@code null} not to.
+	 * @param budget
+	 *            How many bytes all downloads may take up together.
+	 */
+	public SongDownloader(Context context, File directory, long budget,
+			Listener listener) {
+		mContext = context;
+		mDirectory = directory;
+		mBudget = budget;
+		mListener = listener;
+		mExecutor = Executors.newFixedThreadPool(PARALLEL_DOWNLOADS,
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"PlayerHater/SongDownloader");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Says which songs should be downloaded, most wanted first. Downloads
+	 * for anything else stop, keeping what they have.
+	 */
+	public synchronized void setWanted(List<Song> songs) {
+		mWanted.clear();
+		for (Song song : songs) {
+			mWanted.add(song.getUri());
+		}
+		Iterator<Map.Entry<Uri, Download>> downloads = mDownloads.entrySet()
+				.iterator();
+		while (downloads.hasNext()) {
+			Map.Entry<Uri, Download> download = downloads.next();
+			if (!mWanted.contains(download.getKey())) {
+				download.getValue().cancel();
+				downloads.remove();
+			}
+		}
+		for (Song song : songs) {
+			Uri uri = song.getUri();
+			if (HttpTransport.handles(uri) && !mDownloads.containsKey(uri)
+					&& !mUndownloadable.contains(uri)
+					&& !file(uri).exists()) {
+				Download download = new Download(song);
+				mDownloads.put(uri, download);
+				mExecutor.execute(download);
+			}
+		}
+	}
+
+	/**
+	 * @return A Uri for the downloaded copy of a song, or {@code null} if it
+	 *         hasn't been downloaded in full.
+	 */
+	public Uri getLocalUri(Uri uri) {
+		if (!HttpTransport.handles(uri)) {
+			return null;
+		}
+		File file = file(uri);
+		if (!file.exists()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return Uri.fromFile(file);
+	}
+
+	/**
+	 * Stops every download, keeping what they have.
+	 */
+	public synchronized void shutdown() {
+		for (Download download : mDownloads.values()) {
+			download.cancel();
+		}
+		mDownloads.clear();
+		mExecutor.shutdownNow();
+	}
+
+	private synchronized void onFinished(Download download) {
+		Long reserved = mReserved.remove(download);
+		if (reserved != null) {
+			mReservedBytes -= reserved;
+		}
+		if (mDownloads.get(download.mUri) == download) {
+			mDownloads.remove(download.mUri);
+		}
+	}
+
+	private synchronized void onUndownloadable(Uri uri) {
+		mUndownloadable.add(uri);
+	}
+
+	/*
+	 * Deletes what isn't wanted, least recently used first, until there is
+	 * room for a download of the given size besides what it already has.
+	 * The other downloads under way count for everything they made room
+	 * for, not what they've written so far.
+	 */
+	private synchronized boolean makeRoom(Download download, long total) {
+		File part = download.mPart;
+		Set<File> reserved = new HashSet<File>();
+		for (Download other : mReserved.keySet()) {
+			if (other != download) {
+				reserved.add(other.mPart);
+			}
+		}
+		Long own = mReserved.get(download);
+		long used = mReservedBytes - (own == null ? 0 : own);
+		List<File> deletable = new ArrayList<File>();
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			Set<String> wanted = new HashSet<String>();
+			for (Uri uri : mWanted) {
+				wanted.add(SegmentCache.key(uri.toString()));
+			}
+			for (File file : files) {
+				if (file.equals(part) || reserved.contains(file)) {
+					continue;
+				}
+				used += file.length();
+				String name = file.getName();
+				int dot = name.indexOf('.');
+				String key = dot == -1 ? name : name.substring(0, dot);
+				if (!wanted.contains(key) && !name.endsWith(INFO_SUFFIX)) {
+					deletable.add(file);
+				}
+			}
+		}
+		Collections.sort(deletable, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long difference = lhs.lastModified() - rhs.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		Iterator<File> oldest = deletable.iterator();
+		while (used + total > mBudget && oldest.hasNext()) {
+			File file = oldest.next();
+			used -= file.length();
+			file.delete();
+			if (file.getName().endsWith(PART_SUFFIX)) {
+				String name = file.getName();
+				File info = new File(mDirectory, name.substring(0,
+						name.length() - PART_SUFFIX.length())
+						+ INFO_SUFFIX);
+				used -= info.length();
+				info.delete();
+			}
+		}
+		if (used + total > mBudget) {
+			return false;
+		}
+		mReserved.put(download, total);
+		mReservedBytes += total - (own == null ? 0 : own);
+		return true;
+	}
+
+	// android.util.Base64 only arrived in API 8.
+	private static String base64(byte[] bytes) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < bytes.length; i += 3) {
+			int chunk = (bytes[i] & 0xFF) << 16;
+			if (i + 1 < bytes.length) {
+				chunk |= (bytes[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				chunk |= bytes[i + 2] & 0xFF;
+			}
+			builder.append(alphabet.charAt((chunk >> 18) & 0x3F));
+			builder.append(alphabet.charAt((chunk >> 12) & 0x3F));
+			builder.append(i + 1 < bytes.length ? alphabet
+					.charAt((chunk >> 6) & 0x3F) : '=');
+			builder.append(i + 2 < bytes.length ? alphabet.charAt(chunk & 0x3F)
+					: '=');
+		}
+		return builder.toString();
+	}
+
+	private File file(Uri uri) {
+		String key = SegmentCache.key(uri.toString());
+		String name = uri.getLastPathSegment();
+		int dot = name == null ? -1 : name.lastIndexOf('.');
+		if (dot != -1 && name.length() - dot <= 5
+				&& name.substring(dot + 1).matches("[A-Za-z0-9]+")) {
+			// Some MediaPlayers go by the extension.
+			key += name.substring(dot);
+		}
+		return new File(mDirectory, key);
+	}
+
+	/*
+	 * One song being downloaded into its .part file, with its length and
+	 * validator alongside in its .info file.
+	 */
+	private final class Download implements Runnable {
+		private final Song mSong;
+		private final Uri mUri;
+		private final File mFile;
+		private final File mPart;
+		private final File mInfo;
+		private volatile boolean mCancelled;
+		private HttpGet mRequest;
+
+		Download(Song song) {
+			mSong = song;
+			mUri = song.getUri();
+			mFile = file(mUri);
+			String key = SegmentCache.key(mUri.toString());
+			mPart = new File(mDirectory, key + PART_SUFFIX);
+			mInfo = new File(mDirectory, key + INFO_SUFFIX);
+		}
+
+		void cancel() {
+			mCancelled = true;
+			HttpGet request;
+			synchronized (this) {
+				request = mRequest;
+			}
+			if (request != null) {
+				request.abort();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				download();
+			} catch (IOException e) {
+				if (!mCancelled) {
+					Log.e("Could not download " + mUri, e);
+				}
+			} finally {
+				synchronized (this) {
+					if (mRequest != null) {
+						mRequest.abort();
+						mRequest = null;
+					}
+				}
+				onFinished(this);
+			}
+		}
+
+		private void download() throws IOException {
+			if (mCancelled
+					|| (!mDirectory.isDirectory() && !mDirectory.mkdirs())) {
+				return;
+			}
+			Uri source = resolve(mUri);
+			if (source == null) {
+				onUndownloadable(mUri);
+				return;
+			}
+			String validator = readValidator(source);
+			long offset = validator == null ? 0 : mPart.length();
+			HttpGet request = new HttpGet(source.toString());
+			if (offset > 0) {
+				request.addHeader("Range", "bytes=" + offset + "-");
+				request.addHeader("If-Range", validator);
+			}
+			synchronized (this) {
+				if (mCancelled) {
+					return;
+				}
+				mRequest = request;
+			}
+			HttpResponse response = HttpTransport.execute(request);
+			int status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			long total;
+			if (status == 206 && entity != null && offset > 0) {
+				total = offset + entity.getContentLength();
+				Header range = response.getFirstHeader("Content-Range");
+				if (range == null
+						|| !range.getValue().startsWith("bytes " + offset + "-")) {
+					throw new IOException("Unexpected " + range);
+				}
+			} else if (status == 200 && entity != null) {
+				// Either a fresh start or the file changed since.
+				offset = 0;
+				total = entity.getContentLength();
+			} else {
+				throw new IOException("HTTP " + status);
+			}
+			Header contentType = response.getFirstHeader("Content-Type");
+			if (total < 0 || entity.getContentLength() < 0
+					|| !CachingProxy.isMediaFile(contentType == null ? null
+							: contentType.getValue())) {
+				onUndownloadable(mUri);
+				return;
+			}
+			if (!makeRoom(this, total)) {
+				Log.d("No room to download " + mUri);
+				return;
+			}
+			writeInfo(source, validator(response));
+
+			MessageDigest digest = null;
+			Header contentMd5 = response.getFirstHeader("Content-MD5");
+			if (offset == 0 && contentMd5 != null) {
+				try {
+					digest = MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					// Check the length alone.
+				}
+			}
+			InputStream in = entity.getContent();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					mPart, offset > 0), BUFFER_SIZE);
+			long downloaded = offset;
+			long reportedAt = 0;
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while (!mCancelled && (read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					if (digest != null) {
+						digest.update(buffer, 0, read);
+					}
+					downloaded += read;
+					long now = SystemClock.elapsedRealtime();
+					if (now - reportedAt >= PROGRESS_INTERVAL) {
+						reportedAt = now;
+						mListener.onDownloadProgress(mSong, downloaded, total);
+					}
+				}
+			} finally {
+				SegmentCache.close(out);
+			}
+			if (mCancelled) {
+				return;
+			}
+
+			if (mPart.length() != total
+					|| (digest != null && !base64(digest.digest()).equals(
+							contentMd5.getValue().trim()))) {
+				Log.d("Download of " + mUri + " didn't verify, starting over");
+				mPart.delete();
+				mInfo.delete();
+				return;
+			}
+			if (!mPart.renameTo(mFile)) {
+				throw new IOException("Could not rename " + mPart);
+			}
+			mInfo.delete();
+			mListener.onDownloadProgress(mSong, total, total);
+		}
+
+		/*
+		 * The one file a song's Uri plays, following playlists, or null if
+		 * it plays several or leads somewhere that can't be downloaded.
+		 */
+		private Uri resolve(Uri uri) throws IOException {
+			for (int depth = 0; depth < MAX_DEPTH; depth++) {
+				if (mCancelled || !HttpTransport.handles(uri)) {
+					return null;
+				}
+				Uri[] uris = PlaylistParser.parsePlaylist(mContext, uri, null);
+				if (uris.length != 1) {
+					return null;
+				} else if (uris[0].equals(uri)) {
+					return uri;
+				}
+				uri = uris[0];
+			}
+			return null;
+		}
+
+		/*
+		 * The validator that the .part file was downloaded against, if it
+		 * was downloaded from this source.
+		 */
+		private String readValidator(Uri source) {
+			if (!mPart.exists() || !mInfo.exists()) {
+				mPart.delete();
+				return null;
+			}
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(mInfo)));
+				if (in.readInt() == FORMAT_VERSION
+						&& in.readUTF().equals(source.toString())) {
+					return in.readUTF();
+				}
+			} catch (IOException e) {
+				// Start again.
+			} finally {
+				SegmentCache.close(in);
+			}
+			mPart.delete();
+			return null;
+		}
+
+		private void writeInfo(Uri source, String validator)
+				throws IOException {
+			if (validator == null) {
+				// Can't be resumed safely, so don't leave anything to resume.
+				mInfo.delete();
+				return;
+			}
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(mInfo)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(source.toString());
+				out.writeUTF(validator);
+			} finally {
+				SegmentCache.close(out);
+			}
+		}
+
+		/*
+		 * A strong ETag, or failing that Last-Modified, as If-Range allows.
+		 */
+		private String validator(HttpResponse response) {
+			Header eTag = response.getFirstHeader("ETag");
+			if (eTag != null && !eTag.getValue().startsWith("W/")) {
+				return eTag.getValue();
+			}
+			Header lastModified = response.getFirstHeader("Last-Modified");
+			return lastModified == null ? null : lastModified.getValue();
+		}
+	}
+}
@@ -18,6 +18,7 @@ package org.prx.playerhater.ipc;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
 import org.prx.playerhater.songs.SongHost;
 import org.prx.playerhater.util.Log;
 
@@ -210,6 +211,16 @@ public class ClientPlugin implements PlayerHaterPlugin {
 		}
 	}
 
+	@Override
+	public void onPlaybackStatistics(Song song, PlaybackStatistics statistics) {
+		// Statistics stay in the service's process.
+	}
+
+	@Override
+	public void onDownloadProgress(Song song, long downloaded, long total) {
+		// As do downloads.
+	}
+
     @Override public void onPlayerHaterShutdown() {
         try {
             mClient.onPlayerHaterShutdown();
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+/**
+ * The commands a player has been given but can't carry out yet.
+ * <p>
+ * Commands always run in the order a player needs them: set the source, then
+ * prepare, then seek, then play. That order is kept as they come in, and
+ * anything a new command makes pointless collapses away before it can reach
+ * the MediaPlayer. A new source drops everything that was waiting, a second
+ * seek replaces the first, and a repeated prepare or play is ignored. A
+ * player that isn't playing yet has nothing to pause or stop, so those cancel
+ * a waiting play instead of being queued.
+ * <p>
+ * This is plain Java with no Android dependencies. Callers must serialise
+ * changes to the queue, but {@link #isPending(int)} can be read from any
+ * thread.
+ *
+ * @param <S>
+ *            Whatever describes a source to the player.
+ */
+public final class CommandQueue<S> {
+
+	public static final int NONE = 0;
+	public static final int SET_SOURCE = 1;
+	public static final int PREPARE = 2;
+	public static final int SEEK = 4;
+	public static final int PLAY = 8;
+
+	private volatile int mPending = NONE;
+	private S mSource;
+	private int mSeekPosition;
+
+	private int mEnqueued;
+	private int mCollapsed;
+
+	/**
+	 * Queues a new source, dropping anything that was waiting for the old
+	 * one.
+	 */
+	public void setSource(S source) {
+		mEnqueued++;
+		mCollapsed += Integer.bitCount(mPending);
+		mPending = SET_SOURCE;
+		mSource = source;
+	}
+
+	public void prepare() {
+		add(PREPARE);
+	}
+
+	/**
+	 * @return {@code true} if this replaced a seek that was already waiting.
+	 */
+	public boolean seek(int position) {
+		mSeekPosition = position;
+		return add(SEEK);
+	}
+
+	public void play() {
+		add(PLAY);
+	}
+
+	/**
+	 * Drops a waiting command without running it.
+	 *
+	 * @return {@code true} if it was waiting.
+	 */
+	public boolean cancel(int command) {
+		if ((mPending & command) == 0) {
+			return false;
+		}
+		remove(command);
+		return true;
+	}
+
+	/**
+	 * @return The command that should run next, or {@link #NONE}.
+	 */
+	public int peek() {
+		return Integer.lowestOneBit(mPending);
+	}
+
+	/**
+	 * @return Whether any of the given commands are waiting.
+	 */
+	public boolean isPending(int commands) {
+		return (mPending & commands) != 0;
+	}
+
+	/**
+	 * Takes the waiting {@link #SET_SOURCE} command off the queue.
+	 */
+	public S takeSource() {
+		S source = mSource;
+		remove(SET_SOURCE);
+		return source;
+	}
+
+	/**
+	 * Takes the waiting {@link #SEEK} command off the queue.
+	 */
+	public int takeSeekPosition() {
+		remove(SEEK);
+		return mSeekPosition;
+	}
+
+	/**
+	 * Takes a command without an argument off the queue.
+	 */
+	public void remove(int command) {
+		mPending &= ~command;
+		if (command == SET_SOURCE) {
+			mSource = null;
+		}
+	}
+
+	public void clear() {
+		mPending = NONE;
+		mSource = null;
+	}
+
+	/**
+	 * @return How many commands have been queued.
+	 */
+	public int getEnqueuedCount() {
+		return mEnqueued;
+	}
+
+	/**
+	 * @return How many queued commands collapsed away without running.
+	 */
+	public int getCollapsedCount() {
+		return mCollapsed;
+	}
+
+	private boolean add(int command) {
+		mEnqueued++;
+		if ((mPending & command) != 0) {
+			mCollapsed++;
+			return true;
+		}
+		mPending |= command;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "CommandQueue(" + Integer.toBinaryString(mPending) + ", "
+				+ mEnqueued + " queued, " + mCollapsed + " collapsed)";
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import org.prx.playerhater.Song;
+
+/**
+ * A player fading out under the one that has taken over from it.
+ * <p>
+ * Starting a crossfade moves the queue on, and the change of song that
+ * causes arrives afterwards from the queue's own thread. That change belongs
+ * to the fade and leaves it running; any later change, pause or stop ends
+ * it.
+ */
+public final class Crossfade<P extends StatelyPlayer> {
+
+	private P mPlayer;
+	private Song mInto;
+
+	/**
+	 * Fades a player out. There mustn't already be a fade under way.
+	 * 
+	 * @param into
+	 *            The song the queue is about to move on to for this fade.
+	 * @param duration
+	 *            In milliseconds.
+	 */
+	public synchronized void start(P player, Song into, long duration) {
+		mPlayer = player;
+		mInto = into;
+		player.fadeTo(0, duration, VolumeAutomation.EQUAL_POWER);
+	}
+
+	public synchronized boolean isFading() {
+		return mPlayer != null;
+	}
+
+	/**
+	 * @return The player fading out, or {@code null}.
+	 */
+	public synchronized P getPlayer() {
+		return mPlayer;
+	}
+
+	/**
+	 * Hears about a change of song, which ends the fade unless it's the one
+	 * the fade started.
+	 * 
+	 * @return The player that was fading out, for the caller to be done
+	 *         with, or {@code null} if the fade carries on or there wasn't
+	 *         one.
+	 */
+	public synchronized P onNowPlayingChanged(Song nowPlaying) {
+		if (mInto != null && mInto == nowPlaying) {
+			mInto = null;
+			return null;
+		}
+		return end();
+	}
+
+	/**
+	 * Ends the fade, if there is one.
+	 * 
+	 * @return The player that was fading out, for the caller to be done
+	 *         with, or {@code null}.
+	 */
+	public synchronized P end() {
+		P player = mPlayer;
+		mPlayer = null;
+		mInto = null;
+		return player;
+	}
+}
@@ -15,65 +15,262 @@
  ******************************************************************************/
 package org.prx.playerhater.mediaplayer;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.net.Uri;
+import android.os.Build;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.prx.playerhater.util.Log;
 
-public class MediaPlayerPool<P extends SynchronousPlayer> {
+/**
+ * Keeps a bounded number of players around and hands them out already
+ * prepared when it can.
+ * <p>
+ * Prepared players live in an access-ordered map, so looking one up, touching
+ * it and finding the least recently requested one to evict are all constant
+ * time. Players that aren't prepared for anything sit on a stack.
+ * <p>
+ * The number of players the pool is allowed to hold moves between
+ * {@link #MIN_SIZE} and the size it was built with. It shrinks under memory
+ * pressure, when the platform runs out of decoders, and when prepared players
+ * mostly go unused; it grows back when prepared players are being used but
+ * have to be evicted to make room.
+ * <p>
+ * Players are built lazily by a {@link PlayerFactory} on a background thread
+ * of the pool's own. That thread has no {@link android.os.Looper}, so the
+ * players still deliver their callbacks on the main thread.
+ */
+public class MediaPlayerPool<P extends SynchronousPlayer> implements
+		OnErrorListener, OnPreparedListener {
 
-	private final Map<Uri, P> mMediaPlayers = new HashMap<Uri, P>();
-	private final Set<P> mIdlePlayers = new HashSet<P>();
-	private final List<Uri> mRequests = new ArrayList<Uri>();
-	private final Class<? extends P> mClass;
+	/**
+	 * The smallest the pool will shrink to: one player for the song that is
+	 * playing and one to prepare the next.
+	 */
+	public static final int MIN_SIZE = 2;
+
+	/**
+	 * Builds the players that a {@link MediaPlayerPool} hands out. Called on
+	 * the pool's background thread.
+	 */
+	public interface PlayerFactory<P extends SynchronousPlayer> {
+		P newPlayer(Context context);
+	}
+
+	/**
+	 * Says where a Uri should really be loaded from, when that isn't the Uri
+	 * itself. Players are still pooled under the Uri they were asked for.
+	 */
+	public interface SourceProvider {
+		/**
+		 * @return Where to load {@code uri} from, or {@code null} for the Uri
+		 *         itself.
+		 */
+		Uri getSource(Uri uri);
+	}
+
+	/**
+	 * Told when a player asked for with
+	 * {@link MediaPlayerPool#acquire(Context, Uri, OnPlayerAcquiredListener)}
+	 * is ready. Called on the pool's background thread, and never for a
+	 * request that has been cancelled.
+	 */
+	public interface OnPlayerAcquiredListener<P extends SynchronousPlayer> {
+		/**
+		 * @param request
+		 *            The request that has completed.
+		 * @param player
+		 *            A player that is prepared or preparing for the requested
+		 *            Uri, or {@code null} if one couldn't be had.
+		 */
+		void onPlayerAcquired(PlayerRequest<P> request, P player);
+	}
+
+	/**
+	 * A pending call to
+	 * {@link MediaPlayerPool#acquire(Context, Uri, OnPlayerAcquiredListener)}.
+	 */
+	public static final class PlayerRequest<P extends SynchronousPlayer> {
+		private final Uri mUri;
+		private boolean mDone;
+		private boolean mCancelled;
+		private P mPlayer;
+
+		private PlayerRequest(Uri uri) {
+			mUri = uri;
+		}
+
+		public Uri getUri() {
+			return mUri;
+		}
+
+		/**
+		 * Gives up on this request. If the pool has not got to it yet, no work
+		 * is done for it at all; if it has, the player goes back into the pool
+		 * still prepared for the Uri.
+		 * 
+		 * @return {@code false} if the request had already completed.
+		 */
+		public synchronized boolean cancel() {
+			if (mDone) {
+				return false;
+			}
+			mCancelled = true;
+			notifyAll();
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return mCancelled;
+		}
+
+		public synchronized boolean isDone() {
+			return mDone;
+		}
+
+		/**
+		 * Waits for the request to complete.
+		 * 
+		 * @return The player, or {@code null} if the request was cancelled or
+		 *         failed.
+		 */
+		public synchronized P get() {
+			boolean interrupted = false;
+			while (!mDone && !mCancelled) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return mPlayer;
+		}
+
+		private synchronized boolean complete(P player) {
+			if (mCancelled) {
+				return false;
+			}
+			mPlayer = player;
+			mDone = true;
+			notifyAll();
+			return true;
+		}
+	}
+
+	private static final int LOW_RAM_MAX_SIZE = 2;
+	private static final int SAMPLE_WINDOW = 8;
+
+	// Errors that mean the platform couldn't give us a decoder or the memory
+	// for one, rather than anything being wrong with the audio itself.
+	private static final int ERROR_NO_MEMORY = -12;
+	private static final int ERROR_NO_INIT = -19;
+
+	private final Map<Uri, P> mMediaPlayers;
+	private final ArrayList<P> mIdlePlayers;
+	private final PlayerFactory<? extends P> mFactory;
+	private final Context mContext;
+	private final ExecutorService mExecutor;
+	private final ExecutorService mAcquirer;
+	private Future<P> mWarmPlayer;
+	private volatile OnPreparedListener mPreparedListener;
+	private volatile SourceProvider mSourceProvider;
+
+	private int mMaxSize;
+	private int mTargetSize;
+	private int mSize;
+
+	private int mHits;
+	private int mMisses;
+	private int mEvictions;
+	private int mDecoderFailures;
+
+	private int mWindowRequests;
+	private int mWindowHits;
+	private int mWindowEvictions;
 
 	public static <SynchronousPlayerClass extends SynchronousPlayer> MediaPlayerPool<SynchronousPlayerClass> getInstance(Context context,
-			Class<SynchronousPlayerClass> klass) {
-		return new MediaPlayerPool<SynchronousPlayerClass>(context, klass);
+			PlayerFactory<SynchronousPlayerClass> factory) {
+		return new MediaPlayerPool<SynchronousPlayerClass>(context, factory);
+	}
+
+	public MediaPlayerPool(Context context, PlayerFactory<P> factory) {
+		this(context, factory, 3);
 	}
 
-	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass) {
-		this(context, mediaPlayerClass, 3);
+	public MediaPlayerPool(Context context, PlayerFactory<P> factory, int size) {
+		mFactory = factory;
+		mContext = context;
+		mExecutor = newDaemonExecutor("PlayerHater/MediaPlayerPool");
+		// Acquisitions get a thread of their own: one waiting on the pool's
+		// lock must never be queued in front of a build that the lock's
+		// holder is waiting on.
+		mAcquirer = newDaemonExecutor("PlayerHater/MediaPlayerPool/acquire");
+		mMaxSize = Math.max(MIN_SIZE, size);
+		if (isLowRamDevice(context)) {
+			mMaxSize = Math.min(mMaxSize, LOW_RAM_MAX_SIZE);
+		}
+		mTargetSize = mMaxSize;
+		mMediaPlayers = new LinkedHashMap<Uri, P>(mMaxSize * 2, 0.75f, true);
+		mIdlePlayers = new ArrayList<P>(mMaxSize);
 	}
 
-	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass, int size) {
-		mClass = mediaPlayerClass;
-		for (int i = 0; i < size; i++) {
-			try {
-				mIdlePlayers.add(mClass.getConstructor(Context.class).newInstance(context));
-			} catch (InstantiationException e) {
-				throw new IllegalArgumentException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalArgumentException(e);
-			} catch (NoSuchMethodException e) {
-                throw new IllegalArgumentException(e);
-            } catch (InvocationTargetException e) {
-                throw new IllegalArgumentException(e);
-            }
-        }
+	/**
+	 * Starts building the first player in the background so that it is ready
+	 * by the time something needs to be played.
+	 * 
+	 * @param onReady
+	 *            Run on the pool's thread once the player exists. May be
+	 *            {@code null}.
+	 */
+	public synchronized void warmUp(final Runnable onReady) {
+		if (mWarmPlayer != null || mSize > 0) {
+			return;
+		}
+		mSize++;
+		mWarmPlayer = mExecutor.submit(new Callable<P>() {
+
+			@Override
+			public P call() {
+				P player = buildPlayer();
+				if (onReady != null) {
+					onReady.run();
+				}
+				return player;
+			}
+		});
 	}
 
 	public synchronized void release() {
-		for (SynchronousPlayer player : mIdlePlayers) {
-			player.release();
-		}
-		mIdlePlayers.clear();
-		for (Uri uri : mRequests) {
-			mMediaPlayers.remove(uri).release();
+		if (mWarmPlayer != null) {
+			mIdlePlayers.add(takeWarmPlayer());
 		}
-		mRequests.clear();
+		releaseIdlePlayers();
 		for (SynchronousPlayer player : mMediaPlayers.values()) {
 			player.release();
+			mSize--;
 		}
 		mMediaPlayers.clear();
+		mAcquirer.shutdownNow();
+		mExecutor.shutdown();
 	}
 
 	public synchronized void prepare(Context context, Uri uri) {
@@ -81,57 +278,409 @@ public class MediaPlayerPool<P extends SynchronousPlayer> {
 			throw new IllegalArgumentException(
 					"can't prepare a player for a null uri!");
 		}
-		if (!mMediaPlayers.containsKey(uri)) {
+		// get() also marks the entry as the most recently requested.
+		if (mMediaPlayers.get(uri) == null) {
 			P player = getPlayer();
 			Log.d("Preparing " + player + " for " + uri);
-			player.prepare(context, uri);
-			addPlayer(player, uri);
+			player.setOnErrorListener(this);
+			player.setOnPreparedListener(this);
+			player.prepare(context, getSource(uri));
+			mMediaPlayers.put(uri, player);
 		}
 	}
 
 	public synchronized P getPlayer(Context context, Uri uri) {
-		Log.d("Getting player for " + uri);
-		if (mMediaPlayers.containsKey(uri)) {
-			mRequests.remove(uri);
-			Log.d("Found one (" + mMediaPlayers.get(uri) + ")");
-			return mMediaPlayers.remove(uri);
-		} else {
-			P player = getPlayer();
-			player.prepare(context, uri);
-			return player;
-		}
+		P player = takePrepared(uri);
+		return player != null ? player : prepareCold(context, uri);
+	}
+
+	/**
+	 * @return The player prepared or preparing for a Uri, which stays in the
+	 *         pool, or {@code null} if there isn't one.
+	 */
+	public synchronized P peekPlayer(Uri uri) {
+		return mMediaPlayers.get(uri);
+	}
+
+	/**
+	 * Gets a player for a Uri without blocking the caller.
+	 * <p>
+	 * A player already prepared or preparing for the Uri is taken out of the
+	 * pool straight away, so nothing asked of the pool in the meantime can
+	 * evict it. Otherwise any reset of an evicted player and the call to
+	 * start preparing happen on a background thread. Requests are handled in
+	 * the order they are made, and a request cancelled before its turn costs
+	 * nothing, so a burst of requests of which only the last one matters only
+	 * does the work for that last one.
+	 * 
+	 * @return A request which can be used to cancel or wait for the player.
+	 */
+	public PlayerRequest<P> acquire(final Context context, final Uri uri,
+			final OnPlayerAcquiredListener<P> listener) {
+		final PlayerRequest<P> request = new PlayerRequest<P>(uri);
+		final P prepared = takePrepared(uri);
+		mAcquirer.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (request.isCancelled()) {
+					if (prepared != null) {
+						recycle(prepared, uri);
+					}
+					return;
+				}
+				P player = prepared;
+				try {
+					if (player == null) {
+						player = prepareCold(context, uri);
+					}
+				} catch (RuntimeException e) {
+					Log.e("Could not get a player for " + uri, e);
+				}
+				if (request.complete(player)) {
+					listener.onPlayerAcquired(request, player);
+				} else if (player != null) {
+					recycle(player, uri);
+				}
+			}
+		});
+		return request;
 	}
 
 	public synchronized void recycle(P player) {
 		if (player != null && player.getState() != StatelyPlayer.END) {
 			player.reset();
+			player.setOnErrorListener(this);
 			mIdlePlayers.add(player);
+			enforceTargetSize();
+		}
+	}
+
+	/**
+	 * Takes a player back without throwing away what it has loaded, so that
+	 * a later request for the same Uri is a hit.
+	 * <p>
+	 * The player is paused and rewound to the beginning first.
+	 */
+	public synchronized void recycle(P player, Uri uri) {
+		if (player == null || player.getState() == StatelyPlayer.END) {
+			return;
+		}
+		switch (player.getState()) {
+		case StatelyPlayer.STARTED:
+		case StatelyPlayer.PAUSED:
+		case StatelyPlayer.PLAYBACK_COMPLETED:
+			player.conditionalPause();
+			player.seekTo(0);
+			// fall through
+		case StatelyPlayer.PREPARED:
+		case StatelyPlayer.PREPARING:
+			player.setOnErrorListener(this);
+			player.setOnPreparedListener(this);
+			P previous = mMediaPlayers.put(uri, player);
+			if (previous != null && previous != player) {
+				recycle(previous);
+			}
+			enforceTargetSize();
+			break;
+		default:
+			recycle(player);
+		}
+	}
+
+	/**
+	 * Gives memory back in response to
+	 * {@link ComponentCallbacks2#onTrimMemory(int)}.
+	 * <p>
+	 * Idle players are always released. Once the process is under real
+	 * pressure the pool also shrinks, giving up prepared players if it has
+	 * to, and once it is in the background it drops to {@link #MIN_SIZE}.
+	 */
+	public synchronized void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			mTargetSize = MIN_SIZE;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			mTargetSize = Math.max(MIN_SIZE, mTargetSize - 1);
+		}
+		releaseIdlePlayers();
+		enforceTargetSize();
+		Log.d("Trimmed (" + level + ") " + this);
+	}
+
+	/**
+	 * Releases every player that isn't prepared for anything. They will be
+	 * built again if they're needed.
+	 */
+	public synchronized void releaseIdlePlayers() {
+		for (int i = mIdlePlayers.size() - 1; i >= 0; i--) {
+			mIdlePlayers.remove(i).release();
+			mSize--;
+		}
+	}
+
+	/**
+	 * Sets what is asked where to load each Uri from from now on. Players
+	 * already prepared carry on with what they have.
+	 */
+	public void setSourceProvider(SourceProvider provider) {
+		mSourceProvider = provider;
+	}
+
+	/**
+	 * Sets a listener to hear when a player the pool is preparing ahead of
+	 * time is ready.
+	 */
+	public void setOnPreparedListener(OnPreparedListener listener) {
+		mPreparedListener = listener;
+	}
+
+	@Override
+	public void onPrepared(MediaPlayer mp) {
+		OnPreparedListener listener = mPreparedListener;
+		if (listener != null) {
+			listener.onPrepared(mp);
+		}
+	}
+
+	/**
+	 * Errors from players that are sitting in the pool. A player that fails
+	 * because the platform is out of decoders or memory is released and the
+	 * pool shrinks so that it stops asking for more than the device can give.
+	 */
+	@Override
+	public synchronized boolean onError(MediaPlayer mp, int what, int extra) {
+		Iterator<Map.Entry<Uri, P>> entries = mMediaPlayers.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			P player = entries.next().getValue();
+			if (player.equals(mp)) {
+				entries.remove();
+				if (isResourceError(what, extra)) {
+					mDecoderFailures++;
+					mTargetSize = Math.max(MIN_SIZE, mTargetSize - 1);
+					player.release();
+					mSize--;
+					Log.d("Out of decoders, shrinking " + this);
+				} else {
+					recycle(player);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of times {@link #getPlayer(Context, Uri)} found a
+	 *         player that had already been prepared for the requested Uri.
+	 */
+	public synchronized int getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return The number of times {@link #getPlayer(Context, Uri)} had to
+	 *         start preparing a player from scratch.
+	 */
+	public synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * @return The number of prepared players that were reset so that they
+	 *         could be used for something else before anyone asked for them.
+	 */
+	public synchronized int getEvictionCount() {
+		return mEvictions;
+	}
+
+	/**
+	 * @return The number of pooled players that failed because the platform
+	 *         had no decoder or memory to give them.
+	 */
+	public synchronized int getDecoderFailureCount() {
+		return mDecoderFailures;
+	}
+
+	/**
+	 * @return The number of players the pool is currently willing to hold.
+	 */
+	public synchronized int getTargetSize() {
+		return mTargetSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MediaPlayerPool[hits=" + mHits + ", misses=" + mMisses
+				+ ", evictions=" + mEvictions + ", prepared="
+				+ mMediaPlayers.size() + ", idle=" + mIdlePlayers.size()
+				+ ", size=" + mSize + "/" + mTargetSize + "]";
+	}
+
+	private Uri getSource(Uri uri) {
+		SourceProvider provider = mSourceProvider;
+		Uri source = provider == null ? null : provider.getSource(uri);
+		return source == null ? uri : source;
+	}
+
+	private synchronized P takePrepared(Uri uri) {
+		Log.d("Getting player for " + uri);
+		P player = mMediaPlayers.remove(uri);
+		if (player != null) {
+			mHits++;
+			mWindowHits++;
+			Log.d("Found one (" + player + ") " + this);
+			onRequested();
+		}
+		return player;
+	}
+
+	private synchronized P prepareCold(Context context, Uri uri) {
+		mMisses++;
+		P player = getPlayer();
+		player.prepare(context, getSource(uri));
+		Log.d("Preparing cold (" + player + ") " + this);
+		onRequested();
+		return player;
+	}
+
+	private void onRequested() {
+		if (++mWindowRequests == SAMPLE_WINDOW) {
+			adjustTargetSize();
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	private synchronized P getPlayer() {
 		if (mIdlePlayers.size() > 0) {
-			P player = (P) mIdlePlayers.toArray()[0];
-			mIdlePlayers.remove(player);
+			P player = mIdlePlayers.remove(mIdlePlayers.size() - 1);
 			Log.d("Getting idle player (" + player + ")");
 			return player;
-		} else if (mRequests.size() > 0) {
-			Uri leastRecentReq = mRequests.remove(mRequests.size() - 1);
-			Log.d("Recycling the player that is prepared for " + leastRecentReq);
-			P player = mMediaPlayers.remove(leastRecentReq);
-			Log.d("Player: " + player);
-			player.reset();
+		} else if (mWarmPlayer != null) {
+			P player = takeWarmPlayer();
+			Log.d("Getting warmed up player (" + player + ")");
 			return player;
+		} else if (mSize < mTargetSize || mMediaPlayers.size() == 0) {
+			Log.d("Growing " + this);
+			return newPlayer();
 		} else {
-			throw new IllegalStateException(
-					"MediaPlayer resources exhausted. Are you sure you're #recycle()ing on time?");
+			P player = evict();
+			player.reset();
+			return player;
 		}
 	}
 
-	private synchronized void addPlayer(P player, Uri uri) {
-		mRequests.remove(uri);
-		mRequests.add(0, uri);
-		mMediaPlayers.put(uri, player);
+	private P evict() {
+		Iterator<Map.Entry<Uri, P>> eldest = mMediaPlayers.entrySet()
+				.iterator();
+		Map.Entry<Uri, P> entry = eldest.next();
+		eldest.remove();
+		mEvictions++;
+		mWindowEvictions++;
+		Log.d("Recycling the player that is prepared for " + entry.getKey());
+		return entry.getValue();
+	}
+
+	/*
+	 * Every few requests, look at how the pool has been doing. If most of
+	 * what we prepare gets thrown away, stop preparing so much. If what we
+	 * prepare is getting used but we've had to evict to make room, allow a
+	 * bigger pool.
+	 */
+	private void adjustTargetSize() {
+		if (mWindowHits * 4 < mWindowRequests) {
+			mTargetSize = Math.max(MIN_SIZE, mTargetSize - 1);
+		} else if (mWindowHits * 2 >= mWindowRequests && mWindowEvictions > 0) {
+			mTargetSize = Math.min(mMaxSize, mTargetSize + 1);
+		}
+		mWindowRequests = 0;
+		mWindowHits = 0;
+		mWindowEvictions = 0;
+		enforceTargetSize();
+	}
+
+	private void enforceTargetSize() {
+		while (mSize > mTargetSize && mIdlePlayers.size() > 0) {
+			mIdlePlayers.remove(mIdlePlayers.size() - 1).release();
+			mSize--;
+		}
+		while (mSize > mTargetSize && mMediaPlayers.size() > 0) {
+			evict().release();
+			mSize--;
+		}
+	}
+
+	// Always build on the pool's thread, even when the caller is going to
+	// wait for it, so that every player gets its callbacks on the same
+	// looper no matter which thread first asked for it.
+	private P newPlayer() {
+		mSize++;
+		return waitFor(mExecutor.submit(new Callable<P>() {
+
+			@Override
+			public P call() {
+				return buildPlayer();
+			}
+		}));
+	}
+
+	private static ExecutorService newDaemonExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private P takeWarmPlayer() {
+		P player = waitFor(mWarmPlayer);
+		mWarmPlayer = null;
+		return player;
+	}
+
+	private P buildPlayer() {
+		P player = mFactory.newPlayer(mContext);
+		player.setOnErrorListener(this);
+		return player;
+	}
+
+	private P waitFor(Future<P> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			mSize--;
+			throw new IllegalStateException("Could not build a player",
+					e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static boolean isResourceError(int what, int extra) {
+		return what == MediaPlayer.MEDIA_ERROR_SERVER_DIED
+				|| (what == MediaPlayer.MEDIA_ERROR_UNKNOWN && (extra == ERROR_NO_MEMORY
+						|| extra == ERROR_NO_INIT || extra == Integer.MIN_VALUE));
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean isLowRamDevice(Context context) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+			return false;
+		}
+		ActivityManager am = (ActivityManager) context
+				.getSystemService(Context.ACTIVITY_SERVICE);
+		return am != null && am.isLowRamDevice();
 	}
 }
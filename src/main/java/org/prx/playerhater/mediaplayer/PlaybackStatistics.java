@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import android.os.SystemClock;
+
+/**
+ * Quality of experience numbers for one playback session, that is, one song
+ * from the moment it was asked for until it stopped being the song that's
+ * playing.
+ * <p>
+ * A {@link StatelyPlayer} fills this in from its buffering callbacks while it
+ * is attached with {@link StatelyPlayer#setPlaybackStatistics}. Once
+ * {@link #finish()} has been called the numbers don't change any more, so it
+ * is safe to hand off to another thread. Durations are in milliseconds, and
+ * ones that never happened are {@code -1}.
+ */
+public final class PlaybackStatistics {
+
+	private static final int TIMELINE_CAPACITY = 128;
+	private static final long NONE = -1;
+
+	private final long mStartedAt;
+	private long mFinishedAt = NONE;
+
+	private long mStartupTime = NONE;
+	private long mTimeToFirstAudio = NONE;
+
+	private int mRebufferCount;
+	private long mStallStartedAt = NONE;
+	private long mStallDuration;
+
+	private final long[] mBufferTimes = new long[TIMELINE_CAPACITY];
+	private final int[] mBufferPercents = new int[TIMELINE_CAPACITY];
+	private int mBufferSamples;
+
+	public PlaybackStatistics() {
+		mStartedAt = SystemClock.elapsedRealtime();
+	}
+
+	synchronized void onPrepared() {
+		if (mFinishedAt == NONE && mStartupTime == NONE) {
+			mStartupTime = SystemClock.elapsedRealtime() - mStartedAt;
+		}
+	}
+
+	synchronized void onAudioStarted() {
+		if (mFinishedAt == NONE && mTimeToFirstAudio == NONE) {
+			mTimeToFirstAudio = SystemClock.elapsedRealtime() - mStartedAt;
+		}
+	}
+
+	synchronized void onBufferingStarted() {
+		if (mFinishedAt != NONE || mStallStartedAt != NONE) {
+			return;
+		}
+		// Waiting for the first audio is startup, not a stall.
+		if (mTimeToFirstAudio != NONE) {
+			mRebufferCount++;
+			mStallStartedAt = SystemClock.elapsedRealtime();
+		}
+	}
+
+	synchronized void onBufferingEnded() {
+		if (mStallStartedAt != NONE) {
+			mStallDuration += SystemClock.elapsedRealtime() - mStallStartedAt;
+			mStallStartedAt = NONE;
+		}
+	}
+
+	synchronized void onBufferingUpdate(int percent) {
+		if (mFinishedAt != NONE || mBufferSamples == TIMELINE_CAPACITY) {
+			return;
+		}
+		if (mBufferSamples > 0
+				&& mBufferPercents[mBufferSamples - 1] == percent) {
+			return;
+		}
+		mBufferTimes[mBufferSamples] = SystemClock.elapsedRealtime()
+				- mStartedAt;
+		mBufferPercents[mBufferSamples] = percent;
+		mBufferSamples++;
+	}
+
+	/**
+	 * Closes the session. Anything reported after this is ignored.
+	 */
+	public synchronized void finish() {
+		if (mFinishedAt == NONE) {
+			onBufferingEnded();
+			mFinishedAt = SystemClock.elapsedRealtime();
+		}
+	}
+
+	public synchronized boolean isFinished() {
+		return mFinishedAt != NONE;
+	}
+
+	/**
+	 * @return How long the session lasted, or has lasted so far.
+	 */
+	public synchronized long getSessionDuration() {
+		long end = mFinishedAt == NONE ? SystemClock.elapsedRealtime()
+				: mFinishedAt;
+		return end - mStartedAt;
+	}
+
+	/**
+	 * @return How long it took for the player to be prepared.
+	 */
+	public synchronized long getStartupTime() {
+		return mStartupTime;
+	}
+
+	/**
+	 * @return How long it took for audio to start coming out.
+	 */
+	public synchronized long getTimeToFirstAudio() {
+		return mTimeToFirstAudio;
+	}
+
+	/**
+	 * @return The number of times playback stalled to buffer after it had
+	 *         started.
+	 */
+	public synchronized int getRebufferCount() {
+		return mRebufferCount;
+	}
+
+	/**
+	 * @return The total time spent stalled.
+	 */
+	public synchronized long getStallDuration() {
+		if (mStallStartedAt != NONE) {
+			return mStallDuration + SystemClock.elapsedRealtime()
+					- mStallStartedAt;
+		}
+		return mStallDuration;
+	}
+
+	/**
+	 * @return The number of buffer samples held. A sample is only kept when
+	 *         the percentage changes, and at most 128 are kept.
+	 */
+	public synchronized int getBufferSampleCount() {
+		return mBufferSamples;
+	}
+
+	/**
+	 * @return When the sample was taken, relative to the session start.
+	 */
+	public synchronized long getBufferSampleTime(int index) {
+		checkSample(index);
+		return mBufferTimes[index];
+	}
+
+	/**
+	 * @return How much of the stream had been buffered, in percent.
+	 */
+	public synchronized int getBufferSamplePercent(int index) {
+		checkSample(index);
+		return mBufferPercents[index];
+	}
+
+	private void checkSample(int index) {
+		if (index < 0 || index >= mBufferSamples) {
+			throw new IndexOutOfBoundsException("sample " + index + " of "
+					+ mBufferSamples);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PlaybackStatistics(startup " + mStartupTime
+				+ "ms, first audio " + mTimeToFirstAudio + "ms, "
+				+ mRebufferCount + " rebuffers, stalled " + getStallDuration()
+				+ "ms, " + mBufferSamples + " buffer samples)";
+	}
+}
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package org.prx.playerhater.mediaplayer;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 
 import android.content.Context;
@@ -59,6 +60,10 @@ public abstract class Player {
 			throws IllegalStateException, IOException,
 			IllegalArgumentException, SecurityException;
 
+	public abstract void setDataSource(FileDescriptor fd, long offset,
+			long length) throws IllegalStateException, IOException,
+			IllegalArgumentException;
+
 	public abstract void setOnErrorListener(OnErrorListener errorListener);
 
 	public abstract void setOnPreparedListener(
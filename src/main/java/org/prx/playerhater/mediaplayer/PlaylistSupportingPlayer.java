@@ -16,34 +16,44 @@
 package org.prx.playerhater.mediaplayer;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
-import org.prx.playerhater.util.PlaylistParser;
+import org.prx.playerhater.R;
+import org.prx.playerhater.cache.CachingProxy;
+import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.PlaylistResolver;
+import org.prx.playerhater.util.PlaylistResolver.Request;
+import org.prx.playerhater.util.PlaylistResolver.Result;
 import org.prx.playerhater.mediaplayer.Player.StateChangeListener;
 
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
-import android.os.AsyncTask;
 
 public class PlaylistSupportingPlayer extends SynchronousPlayer implements
-		StateChangeListener {
+		StateChangeListener, PlaylistResolver.Callback {
 	private static final String HTTP = "http";
 	private static final String HTTPS = "https";
+	private static int sMirrorRace = -1;
 	private Uri[] mPlaylist;
 	private Context mContext = null;
     private final Context mPlayerContext;
 	private int mQueuePosition = 0;
 	private int streamType = -1;
-	private PlaylistSupportingPlayer mCurrentPlayer = this;
+	private volatile PlaylistSupportingPlayer mCurrentPlayer = this;
 	private PlaylistSupportingPlayer mNextPlayer = null;
+	// The player for whatever comes after the last entry of this playlist.
+	private StatelyPlayer mNextSongPlayer = null;
 	private boolean mDieOnCompletion = false;
+	// Mirrors of one live stream, best first, to fail over between.
+	private Uri[] mMirrors;
+	private int mMirrorPosition;
+	private Context mMirrorContext;
 
-	private LoadPlaylistTask mLoadPlaylistTask;
-	private boolean mPreparingPlaylist = false;
-	private float mLeftVolume;
-	private float mRightVolume;
+	private volatile Request mResolution;
+	private volatile boolean mPreparingPlaylist = false;
+
+	// How long it takes an entry that follows another with a gap to fade in.
+	private static final long FADE_IN_DURATION = 1000;
 
     public PlaylistSupportingPlayer(Context context) {
         super(context);
@@ -54,8 +64,9 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	public synchronized void setDataSource(Context context, Uri uri)
 			throws IllegalStateException, IOException,
 			IllegalArgumentException, SecurityException {
-		if (mLoadPlaylistTask != null) {
-			mLoadPlaylistTask.cancel(true);
+		if (mResolution != null) {
+			mResolution.cancel();
+			mResolution = null;
 		}
 		mPreparingPlaylist = false;
 		if (mNextPlayer != null) {
@@ -73,6 +84,9 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		mPlaylist = null;
 		mContext = null;
 		mQueuePosition = 0;
+		mNextSongPlayer = null;
+		mMirrors = null;
+		mMirrorContext = null;
 		if (uri.getScheme().equals(HTTP) || uri.getScheme().equals(HTTPS)) {
 			loadPlaylist(context, uri);
 		} else {
@@ -81,18 +95,43 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	private synchronized void loadPlaylist(final Context context, final Uri uri) {
-		mLoadPlaylistTask = new LoadPlaylistTask(this, context, uri);
-		mLoadPlaylistTask.execute();
+		mResolution = PlaylistResolver.resolve(context, uri,
+				getMirrorRace(mPlayerContext), this);
+	}
+
+	@Override
+	public synchronized void onResolved(Request request, Result result) {
+		if (request != mResolution) {
+			return;
+		}
+		Uri[] uris = result.getUris();
+		if (!result.isSuccessful()) {
+			mResolution = null;
+			mPreparingPlaylist = false;
+			Log.d("Could not resolve " + request.getUri() + ": " + result);
+			onError(getBarePlayer(), MediaPlayer.MEDIA_ERROR_UNKNOWN,
+					getErrorExtra(result));
+		} else if (uris.length == 1) {
+			setSingleSong(request.getContext(), uris[0]);
+		} else if (result.isMirrors()) {
+			setMirrors(request.getContext(), uris);
+		} else {
+			setPlaylist(request.getContext(), uris);
+		}
 	}
 
 	private synchronized void setSingleSong(Context context, Uri uri) {
 		try {
+			if (mMirrors == null) {
+				// Live streams have nothing worth caching.
+				uri = CachingProxy.route(mPlayerContext, uri);
+			}
 			super.setDataSource(context, uri);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		mCurrentPlayer = this;
-		mLoadPlaylistTask = null;
+		mResolution = null;
 		mPlaylist = null;
 		mContext = null;
 		if (mPreparingPlaylist) {
@@ -114,9 +153,51 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 	}
 
+	/**
+	 * Plays the first of several mirrors of a live stream, keeping the rest
+	 * to fail over to if it errors or drops.
+	 */
+	private synchronized void setMirrors(Context context, Uri[] mirrors) {
+		mMirrors = mirrors;
+		mMirrorPosition = 0;
+		mMirrorContext = context;
+		setSingleSong(context, mirrors[0]);
+	}
+
+	/*
+	 * Moves on to the next mirror that can be loaded, picking up where the
+	 * failed one was: playing, preparing, or just loaded.
+	 */
+	private synchronized boolean failOver(boolean play) {
+		if (mMirrors == null || mCurrentPlayer != this) {
+			return false;
+		}
+		int state = super.getState();
+		boolean prepare = state == PREPARING || state == PREPARED
+				|| state == PAUSED;
+		while (mMirrorPosition + 1 < mMirrors.length) {
+			Uri mirror = mMirrors[++mMirrorPosition];
+			Log.d("Failing over to mirror " + mirror);
+			super.reset();
+			try {
+				super.setDataSource(mMirrorContext, mirror);
+			} catch (Exception e) {
+				continue;
+			}
+			if (play) {
+				start();
+			} else if (prepare) {
+				prepareAsync();
+			}
+			chainNext();
+			return true;
+		}
+		return false;
+	}
+
 	@Override
 	public void prepareAsync() {
-		if (mLoadPlaylistTask != null && !mPreparingPlaylist) {
+		if (mResolution != null && !mPreparingPlaylist) {
 			mPreparingPlaylist = true;
 			onStateChanged();
 		} else {
@@ -134,6 +215,9 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 
 	@Override
 	public boolean onError(MediaPlayer mp, int what, int extra) {
+		if (failOver(getState() == STARTED || isWaitingToPlay())) {
+			return true;
+		}
 		boolean handled = false;
 		if (super.equals(mp)) { // This came from our own player.
 			handled = super.onError(mp, what, extra);
@@ -146,17 +230,34 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		return handled;
 	}
 
+	@Override
+	protected void onUnhandledError(MediaPlayer mp, int what, int extra) {
+		mDieOnCompletion = true;
+		super.onUnhandledError(mp, what, extra);
+	}
+
 	@Override
 	public synchronized void onCompletion(MediaPlayer mp) {
 		if (mDieOnCompletion) {
 			mDieOnCompletion = false;
+		} else if (mMirrors != null) {
+			// A live stream only ends when its connection drops.
+			if (failOver(true)) {
+				return;
+			}
 		} else if (mPlaylist != null) {
 			mQueuePosition += 1;
 			if (mQueuePosition < mPlaylist.length) {
 				PlaylistSupportingPlayer tmp = mCurrentPlayer;
+				boolean chained = tmp.isChainedTo(mNextPlayer);
 				mCurrentPlayer = mNextPlayer;
 				mNextPlayer = tmp;
-				mCurrentPlayer.startWithFade();
+				if (chained) {
+					// Already playing, or about to be; this just makes sure.
+					mCurrentPlayer.start();
+				} else {
+					mCurrentPlayer.startWithFade();
+				}
 				if (mQueuePosition + 1 < mPlaylist.length) {
 					mNextPlayer.reset();
 					try {
@@ -182,6 +283,7 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 					}
 					mNextPlayer = null;
 				}
+				chainNext();
 				return;
 			}
 		}
@@ -190,12 +292,50 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 
 	@Override
 	public void onStateChanged(Player mediaPlayer, int state) {
+		if (mediaPlayer == mNextPlayer
+				&& StatelyPlayer.mediaPlayerState(state) == PREPARED) {
+			chainNext();
+		}
 		super.onStateChanged();
 	}
 
+	@Override
+	public synchronized void onPrepared(MediaPlayer mp) {
+		super.onPrepared(mp);
+		if (mNextPlayer == this) {
+			chainNext();
+		}
+	}
+
+	/**
+	 * Names the player for whatever comes after this one. If this is a
+	 * playlist, that is only chained once its last entry is playing; until
+	 * then each entry is chained to the next.
+	 */
+	@Override
+	public synchronized boolean setNextPlayer(StatelyPlayer next) {
+		mNextSongPlayer = next;
+		return chainNext();
+	}
+
+	private synchronized boolean chainNext() {
+		StatelyPlayer next = mNextSongPlayer;
+		if (mPlaylist != null && mQueuePosition + 1 < mPlaylist.length) {
+			next = mNextPlayer;
+		}
+		if (next == mCurrentPlayer) {
+			next = null;
+		}
+		if (mCurrentPlayer == this) {
+			return super.setNextPlayer(next);
+		} else {
+			return mCurrentPlayer.setNextPlayer(next);
+		}
+	}
+
 	@Override
 	public int getState() {
-		if (mLoadPlaylistTask != null) {
+		if (mResolution != null) {
 			if (mPreparingPlaylist) {
 				return StatelyPlayer.PREPARING;
 			} else {
@@ -209,8 +349,29 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 	}
 
+	@Override
+	public void setPlaybackStatistics(PlaybackStatistics statistics) {
+		super.setPlaybackStatistics(statistics);
+		if (mCurrentPlayer != null && mCurrentPlayer != this) {
+			mCurrentPlayer.setPlaybackStatistics(statistics);
+		}
+		if (mNextPlayer != null && mNextPlayer != this) {
+			mNextPlayer.setPlaybackStatistics(statistics);
+		}
+	}
+
+	@Override
+	public StateJournal getJournal() {
+		if (mCurrentPlayer == this) {
+			return super.getJournal();
+		} else {
+			return mCurrentPlayer.getJournal();
+		}
+	}
+
 	@Override
 	public void reset() {
+		mNextSongPlayer = null;
 		super.reset();
 		if (mNextPlayer != null && mNextPlayer != this) {
 			mNextPlayer.reset();
@@ -222,6 +383,11 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 
 	@Override
 	public void release() {
+		Request resolution = mResolution;
+		if (resolution != null) {
+			resolution.cancel();
+			mResolution = null;
+		}
 		super.release();
 		if (mNextPlayer != null && mNextPlayer != this) {
 			mNextPlayer.release();
@@ -241,23 +407,29 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	public void startWithFade() throws IllegalStateException {
-		setVolume(0, 0);
+		fadeTo(0, 0, VolumeAutomation.LINEAR);
 		start();
-		final Timer timer = new Timer(true);
-		TimerTask timerTask = new TimerTask() {
-
-			@Override
-			public void run() {
-				setVolume(mLeftVolume + 0.1f, mRightVolume + 01.f);
-				if (mLeftVolume >= 1.0f || mRightVolume >= 1.0f) {
-					timer.cancel();
-					timer.purge();
-				}
-			}
+		fadeTo(1.0f, FADE_IN_DURATION, VolumeAutomation.EQUAL_POWER);
+	}
 
-		};
+	@Override
+	public void fadeTo(float gain, long duration, int curve) {
+		if (mCurrentPlayer == this) {
+			super.fadeTo(gain, duration, curve);
+		} else {
+			mCurrentPlayer.fadeTo(gain, duration, curve);
+		}
+	}
 
-		timer.schedule(timerTask, 200, 200);
+	@Override
+	public void duckTo(float gain, long duration) {
+		super.duckTo(gain, duration);
+		if (mCurrentPlayer != this && mCurrentPlayer != null) {
+			mCurrentPlayer.duckTo(gain, duration);
+		}
+		if (mNextPlayer != this && mNextPlayer != null) {
+			mNextPlayer.duckTo(gain, duration);
+		}
 	}
 
 	@Override
@@ -332,8 +504,6 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	@Override
 	public void setVolume(float leftVolume, float rightVolume) {
 		super.setVolume(leftVolume, rightVolume);
-		this.mLeftVolume = leftVolume;
-		this.mRightVolume = rightVolume;
 		if (mCurrentPlayer != this && mCurrentPlayer != null) {
 			mCurrentPlayer.setVolume(leftVolume, rightVolume);
 		}
@@ -385,7 +555,7 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	@Override
-	public synchronized boolean isWaitingToPlay() {
+	public boolean isWaitingToPlay() {
 		if (mCurrentPlayer == this) {
 			return super.isWaitingToPlay();
 		} else {
@@ -398,56 +568,30 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		player.setOnErrorListener(this);
 		player.setOnCompletionListener(this);
 		player.setStateChangeListener(this);
+		player.setPlaybackStatistics(getPlaybackStatistics());
+		player.duckTo(getDuckGain(), 0);
 		if (streamType != -1) {
 			player.setAudioStreamType(streamType);
 		}
 		return player;
 	}
 
-	private static class LoadPlaylistTask extends AsyncTask<Void, Void, Uri[]> {
-
-		private final PlaylistSupportingPlayer mPlayer;
-		private final Context mContext;
-		private final Uri mUri;
-
-		private Uri mFirstUri;
-		private Uri[] mPlaylist;
-
-		private LoadPlaylistTask(PlaylistSupportingPlayer player,
-				Context context, Uri uri) {
-			mPlayer = player;
-			mContext = context;
-			mUri = uri;
-		}
-
-		@Override
-		protected Uri[] doInBackground(Void... arg0) {
-			mFirstUri = mUri;
-			mPlaylist = PlaylistParser.parsePlaylist(mFirstUri);
-			for (int depth = 0; depth < 10; depth++) {
-				if (mFirstUri.equals(mPlaylist[0]) && mPlaylist.length == 1) {
-					return mPlaylist;
-				} else if (mPlaylist.length == 1) {
-					mFirstUri = mPlaylist[0];
-					mPlaylist = PlaylistParser.parsePlaylist(mFirstUri);
-				} else {
-					return mPlaylist;
-				}
-				if (isCancelled()) {
-					return null;
-				}
-			}
-			throw new IllegalStateException("playlist depth too deep!");
+	private static int getErrorExtra(Result result) {
+		switch (result.getError()) {
+		case Result.TIMED_OUT:
+			return MediaPlayer.MEDIA_ERROR_TIMED_OUT;
+		case Result.TOO_DEEP:
+			return MediaPlayer.MEDIA_ERROR_MALFORMED;
+		default:
+			return MediaPlayer.MEDIA_ERROR_IO;
 		}
+	}
 
-		@Override
-		protected void onPostExecute(Uri[] result) {
-			if (result.length == 1) {
-				mPlayer.setSingleSong(mContext, result[0]);
-			} else {
-				mPlayer.setPlaylist(mContext, result);
-			}
+	private static synchronized int getMirrorRace(Context context) {
+		if (sMirrorRace < 0) {
+			sMirrorRace = context.getResources().getInteger(
+					R.integer.zzz_ph_mirror_race);
 		}
-
+		return sMirrorRace;
 	}
 }
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import android.os.SystemClock;
+
+/**
+ * A fixed-size record of the most recent state transitions of a
+ * {@link StatelyPlayer}, along with a few timings worked out from them as
+ * they happen.
+ * <p>
+ * Everything is kept in preallocated arrays and primitive fields, so
+ * recording a transition never allocates. Times are from
+ * {@link SystemClock#elapsedRealtime()} and durations are in milliseconds.
+ * Durations that haven't been seen yet are reported as {@code -1}.
+ */
+public final class StateJournal {
+
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private static final long NONE = -1;
+
+	private final int[] mStates;
+	private final long[] mTimes;
+	private int mNext;
+	private int mSize;
+
+	private long mPrepareStartedAt = NONE;
+	private long mTimeToPrepared = NONE;
+	private long mTotalTimeToPrepared;
+	private int mPrepareCount;
+
+	private boolean mSeekRequested;
+	private long mSeekStartedAt = NONE;
+	private long mSeekLatency = NONE;
+	private long mTotalSeekLatency;
+	private int mSeekCount;
+	private int mDroppedSeekCount;
+
+	private long mContentOpenLatency = NONE;
+
+	private boolean mHandoffArmed;
+	private long mHandoffCompletedAt = NONE;
+	private long mHandoffStartedAt = NONE;
+	private long mHandoffGap = NONE;
+	private long mTotalHandoffGap;
+	private int mHandoffCount;
+
+	private long mErrorAt = NONE;
+	private long mErrorRecoveryTime = NONE;
+	private int mErrorCount;
+
+	public StateJournal() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public StateJournal(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		mStates = new int[capacity];
+		mTimes = new long[capacity];
+	}
+
+	/**
+	 * Marks the next move into {@link StatelyPlayer#PREPARING} as a seek
+	 * rather than a prepare or a buffering stall.
+	 */
+	synchronized void onSeek() {
+		mSeekRequested = true;
+	}
+
+	synchronized void record(int from, int to) {
+		long now = SystemClock.elapsedRealtime();
+		mStates[mNext] = to;
+		mTimes[mNext] = now;
+		mNext = (mNext + 1) % mStates.length;
+		if (mSize < mStates.length) {
+			mSize++;
+		}
+
+		if (mSeekStartedAt != NONE && to != StatelyPlayer.PREPARING) {
+			mSeekLatency = now - mSeekStartedAt;
+			mTotalSeekLatency += mSeekLatency;
+			mSeekCount++;
+			mSeekStartedAt = NONE;
+		}
+
+		switch (to) {
+		case StatelyPlayer.STARTED:
+			if (from == StatelyPlayer.PREPARED && mHandoffArmed) {
+				if (mHandoffCompletedAt != NONE) {
+					recordHandoffGap(now - mHandoffCompletedAt);
+				} else {
+					mHandoffStartedAt = now;
+				}
+			}
+			break;
+		case StatelyPlayer.PREPARING:
+			if (mSeekRequested) {
+				mSeekRequested = false;
+				mSeekStartedAt = now;
+			} else if (from != StatelyPlayer.STARTED
+					&& mPrepareStartedAt == NONE) {
+				mPrepareStartedAt = now;
+			}
+			break;
+		case StatelyPlayer.PREPARING_CONTENT:
+			if (mPrepareStartedAt == NONE) {
+				mPrepareStartedAt = now;
+			}
+			break;
+		case StatelyPlayer.PREPARED:
+			if (mPrepareStartedAt != NONE) {
+				mTimeToPrepared = now - mPrepareStartedAt;
+				mTotalTimeToPrepared += mTimeToPrepared;
+				mPrepareCount++;
+				mPrepareStartedAt = NONE;
+			}
+			if (mErrorAt != NONE) {
+				mErrorRecoveryTime = now - mErrorAt;
+				mErrorAt = NONE;
+			}
+			break;
+		case StatelyPlayer.ERROR:
+			mErrorCount++;
+			if (mErrorAt == NONE) {
+				mErrorAt = now;
+			}
+			// fall through
+		case StatelyPlayer.IDLE:
+		case StatelyPlayer.END:
+			mPrepareStartedAt = NONE;
+			mSeekRequested = false;
+			mSeekStartedAt = NONE;
+			disarmHandoff();
+			break;
+		}
+	}
+
+	/**
+	 * Marks this player as the one that takes over when another completes.
+	 */
+	synchronized void armHandoff() {
+		mHandoffArmed = true;
+		mHandoffCompletedAt = NONE;
+		mHandoffStartedAt = NONE;
+	}
+
+	/**
+	 * Stops waiting for a hand over, unless the player before this one has
+	 * already completed and this one is only waiting to be started.
+	 */
+	synchronized void cancelHandoff() {
+		if (mHandoffCompletedAt == NONE) {
+			disarmHandoff();
+		}
+	}
+
+	synchronized void disarmHandoff() {
+		mHandoffArmed = false;
+		mHandoffCompletedAt = NONE;
+		mHandoffStartedAt = NONE;
+	}
+
+	/**
+	 * Notes that the player this one takes over from has completed.
+	 */
+	synchronized void recordHandoffCompleted() {
+		if (!mHandoffArmed) {
+			return;
+		}
+		if (mHandoffStartedAt != NONE) {
+			// Started before the completion was even reported.
+			recordHandoffGap(0);
+		} else {
+			mHandoffCompletedAt = SystemClock.elapsedRealtime();
+		}
+	}
+
+	private void recordHandoffGap(long gap) {
+		mHandoffGap = gap;
+		mTotalHandoffGap += gap;
+		mHandoffCount++;
+		disarmHandoff();
+	}
+
+	/**
+	 * Notes a seek that was replaced by a later one before it reached the
+	 * MediaPlayer.
+	 */
+	synchronized void recordDroppedSeek() {
+		mDroppedSeekCount++;
+	}
+
+	synchronized void recordContentOpen(long latency) {
+		mContentOpenLatency = latency;
+	}
+
+	/**
+	 * @return The number of transitions held, at most the capacity.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index
+	 *            From {@code 0}, the oldest transition held, to
+	 *            {@code size() - 1}, the latest.
+	 * @return The state that was entered.
+	 */
+	public synchronized int getState(int index) {
+		return mStates[slot(index)];
+	}
+
+	/**
+	 * @param index
+	 *            As for {@link #getState(int)}.
+	 * @return When the state was entered.
+	 */
+	public synchronized long getTime(int index) {
+		return mTimes[slot(index)];
+	}
+
+	/**
+	 * Copies the transitions held, oldest first, into arrays the caller
+	 * owns.
+	 *
+	 * @return The number of transitions copied.
+	 */
+	public synchronized int copyTo(int[] states, long[] times) {
+		int count = Math.min(mSize, Math.min(states.length, times.length));
+		int skip = mSize - count;
+		for (int i = 0; i < count; i++) {
+			int slot = slot(skip + i);
+			states[i] = mStates[slot];
+			times[i] = mTimes[slot];
+		}
+		return count;
+	}
+
+	/**
+	 * @return How long the latest prepare took, from prepareAsync to
+	 *         prepared.
+	 */
+	public synchronized long getTimeToPrepared() {
+		return mTimeToPrepared;
+	}
+
+	public synchronized long getAverageTimeToPrepared() {
+		return mPrepareCount == 0 ? NONE : mTotalTimeToPrepared
+				/ mPrepareCount;
+	}
+
+	/**
+	 * @return How long the latest seek took to complete.
+	 */
+	public synchronized long getSeekLatency() {
+		return mSeekLatency;
+	}
+
+	public synchronized long getAverageSeekLatency() {
+		return mSeekCount == 0 ? NONE : mTotalSeekLatency / mSeekCount;
+	}
+
+	/**
+	 * @return How many seeks were dropped in favour of a later target.
+	 */
+	public synchronized int getDroppedSeekCount() {
+		return mDroppedSeekCount;
+	}
+
+	/**
+	 * @return How long it took to get from the latest error that was
+	 *         recovered from to being prepared again.
+	 */
+	public synchronized long getErrorRecoveryTime() {
+		return mErrorRecoveryTime;
+	}
+
+	/**
+	 * @return How long it took to open the latest content:// Uri.
+	 */
+	public synchronized long getContentOpenLatency() {
+		return mContentOpenLatency;
+	}
+
+	/**
+	 * @return How long it took this player to start after the one before it
+	 *         completed, the latest time it took over from another.
+	 */
+	public synchronized long getHandoffGap() {
+		return mHandoffGap;
+	}
+
+	public synchronized long getAverageHandoffGap() {
+		return mHandoffCount == 0 ? NONE : mTotalHandoffGap / mHandoffCount;
+	}
+
+	public synchronized int getHandoffCount() {
+		return mHandoffCount;
+	}
+
+	public synchronized int getErrorCount() {
+		return mErrorCount;
+	}
+
+	private int slot(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("index " + index
+					+ " of a journal holding " + mSize);
+		}
+		return (mNext - mSize + index + mStates.length) % mStates.length;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder("StateJournal(");
+		for (int i = 0; i < mSize; i++) {
+			int slot = slot(i);
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(StatelyPlayer.getStateName(mStates[slot]))
+					.append('@').append(mTimes[slot]);
+		}
+		return builder.append("; prepared in ").append(mTimeToPrepared)
+				.append("ms, seeked in ").append(mSeekLatency)
+				.append("ms, ").append(mDroppedSeekCount)
+				.append(" seeks dropped, handed over in ").append(mHandoffGap)
+				.append("ms, ").append(mErrorCount).append(" errors)")
+				.toString();
+	}
+}
@@ -15,8 +15,17 @@
  ******************************************************************************/
 package org.prx.playerhater.mediaplayer;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.prx.playerhater.R;
+import org.prx.playerhater.cache.ClipPack;
 import org.prx.playerhater.util.Log;
 
 import android.content.ContentProviderClient;
@@ -30,8 +39,12 @@ import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaPlayer.OnSeekCompleteListener;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 		OnCompletionListener, OnErrorListener, OnInfoListener,
@@ -40,6 +53,15 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
     private static final String PERMISSION = "android.permission.WAKE_LOCK";
     private static final int GRANTED = PackageManager.PERMISSION_GRANTED;
     private static final int WAKE_LOCK = PowerManager.PARTIAL_WAKE_LOCK;
+    private static Boolean sCanWakeLock;
+    private static final int CONTENT_LOADER_THREADS = 2;
+    // MediaPlayer.MEDIA_INFO_AUDIO_RENDERING_START, which the platform sends
+    // from Oreo on but hides from the SDK.
+    private static final int MEDIA_INFO_AUDIO_RENDERING_START = 4;
+    private static ExecutorService sContentLoader;
+    private static int sPositionRefreshInterval = -1;
+    private static Boolean sGapless;
+    private static Handler sDispatchLane;
 
 	/**
 	 * An invalid state for a {@linkplain MediaPlayer} to be in.
@@ -146,30 +168,113 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	private final MediaPlayer mMediaPlayer;
-	private StateChangeListener mStateChangeListener;
-	private boolean mBuffering = false;
-	private boolean mNotSeekable = false;
+	private volatile StateChangeListener mStateChangeListener;
+	private volatile boolean mBuffering = false;
+	private volatile boolean mNotSeekable = false;
 
 	public static class ListenerCollection {
-		public OnErrorListener errorListener;
-		public OnPreparedListener preparedListener;
-		public OnCompletionListener completionListener;
-		public OnBufferingUpdateListener bufferingUpdateListener;
-		public OnInfoListener infoListener;
-		public OnSeekCompleteListener seekCompleteListener;
+		public volatile OnErrorListener errorListener;
+		public volatile OnPreparedListener preparedListener;
+		public volatile OnCompletionListener completionListener;
+		public volatile OnBufferingUpdateListener bufferingUpdateListener;
+		public volatile OnInfoListener infoListener;
+		public volatile OnSeekCompleteListener seekCompleteListener;
 	}
 
 	private final ListenerCollection mListenerCollection;
 
-	private int mState;
-	private int mPrevState;
+	/*
+	 * The state is only ever changed by compare-and-set, so reading it never
+	 * takes a lock. Commands still serialise on the monitor, since the
+	 * underlying MediaPlayer has to see them in order, but callbacks from the
+	 * MediaPlayer don't: each one is a single transition which either applies
+	 * to the state it finds or is dropped, so a callback which shows up after
+	 * a reset can't drag the player back into a stale state.
+	 */
+	private final AtomicInteger mState = new AtomicInteger(IDLE);
+	private final StateJournal mJournal = new StateJournal();
+	private volatile int mPrevState;
+
+	private volatile boolean mInErrorCallback;
+
+	// Bumped whenever a data source is superseded, so that a content:// load
+	// which finishes late knows to throw its result away.
+	private int mDataSourceGeneration;
+	private Future<?> mContentLoad;
+
+	private volatile PositionAnchor mPositionAnchor;
+	private volatile PlaybackStatistics mStatistics;
+
+	/*
+	 * Listener callbacks are queued here and run in order, never while the
+	 * thread running them holds this player's monitor. If the callback is
+	 * queued from inside the monitor, the queue is drained from the dispatch
+	 * lane (the main looper) instead, so listeners are free to call back into
+	 * the player or block without holding up anyone else.
+	 */
+	private final LinkedList<Runnable> mPendingCallbacks = new LinkedList<Runnable>();
+	private boolean mDispatching;
+	private final Runnable mDispatchPending = new Runnable() {
 
-	private boolean mInErrorCallback;
+		@Override
+		public void run() {
+			dispatchPending();
+		}
+	};
+	private final int mPositionRefreshInterval;
+
+	/*
+	 * The player that takes over when this one completes, and the one this
+	 * player takes over from. When the platform can do it, the hand over is
+	 * chained inside the MediaPlayer itself so that there's no gap.
+	 */
+	private final boolean mGapless;
+	private volatile StatelyPlayer mNextPlayer;
+	private volatile StatelyPlayer mPreviousPlayer;
+	private volatile boolean mChainedNatively;
+
+	/*
+	 * What comes out is the volume that was set, times the fade gain, times
+	 * the duck gain. Fades and ducks are ramped independently by
+	 * VolumeAutomation, which calls in from its own thread, so all of this is
+	 * guarded by a lock of its own rather than the player's monitor.
+	 */
+	private final Object mVolumeLock = new Object();
+	private float mLeftVolume = 1.0f;
+	private float mRightVolume = 1.0f;
+	private float mFadeGain = 1.0f;
+	private float mDuckGain = 1.0f;
+	private VolumeAutomation.Ramp mFade;
+	private VolumeAutomation.Ramp mDuck;
 
 	public StatelyPlayer(Context context) {
-		mMediaPlayer = new MediaPlayer();
+		this(new MediaPlayer(), getPositionRefreshInterval(context),
+				isGapless(context));
         setWakeLock(context);
-		setState(IDLE);
+	}
+
+	/*
+	 * Wraps a MediaPlayer the caller made, which lets tests on the JVM put
+	 * a fake one in. Positions are always asked for and nothing is chained
+	 * natively.
+	 */
+	StatelyPlayer(MediaPlayer mediaPlayer) {
+		this(mediaPlayer, 0, false);
+	}
+
+	/*
+	 * As above, but chaining natively whenever the next player is prepared,
+	 * whatever the platform.
+	 */
+	StatelyPlayer(MediaPlayer mediaPlayer, boolean gapless) {
+		this(mediaPlayer, 0, gapless);
+	}
+
+	private StatelyPlayer(MediaPlayer mediaPlayer,
+			int positionRefreshInterval, boolean gapless) {
+		mMediaPlayer = mediaPlayer;
+		mPositionRefreshInterval = positionRefreshInterval;
+		mGapless = gapless;
 		mListenerCollection = new ListenerCollection();
 		getBarePlayer().setOnBufferingUpdateListener(this);
 		getBarePlayer().setOnCompletionListener(this);
@@ -185,17 +290,17 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	@Override
-	public synchronized int getState() {
+	public int getState() {
 		return getPublicState(getInternalState());
 	}
 
-	public synchronized int getStateMask() {
+	public int getStateMask() {
 		return getState() | (isWaitingToPlay() ? WILL_PLAY : 0)
 				| (mNotSeekable ? NOT_SEEKABLE : 0);
 	}
 
-	private synchronized int getInternalState() {
-		return mState;
+	private int getInternalState() {
+		return mState.get();
 	}
 
 	private int getPublicState(int internalState) {
@@ -212,18 +317,207 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 		}
 	}
 
-	private synchronized void setState(int state) {
-		mState = state;
+	/*
+	 * The bitmasks below test states by bit, and the states that don't have a
+	 * bit of their own (idle and the negative content:// states) get one here
+	 * so that every state can appear in a mask.
+	 */
+	private static final int IDLE_BIT = 1 << 12;
+	private static final int LOADING_CONTENT_BIT = 1 << 13;
+	private static final int PREPARING_CONTENT_BIT = 1 << 14;
+	private static final int ANY_STATE = ~0;
+
+	private static int stateBit(int state) {
+		switch (state) {
+		case IDLE:
+			return IDLE_BIT;
+		case LOADING_CONTENT:
+			return LOADING_CONTENT_BIT;
+		case PREPARING_CONTENT:
+			return PREPARING_CONTENT_BIT;
+		case INVALID_STATE:
+			return 0;
+		default:
+			return state;
+		}
+	}
+
+	private static boolean inState(int state, int bitmask) {
+		return (stateBit(state) & bitmask) != 0;
+	}
+
+	/**
+	 * The transition table: which states may move into {@code state}.
+	 */
+	private static int allowedFrom(int state) {
+		switch (state) {
+		case IDLE:
+			return ANY_STATE & ~END;
+		case END:
+		case ERROR:
+			return ANY_STATE;
+		case INITIALIZED:
+			return IDLE_BIT | LOADING_CONTENT_BIT | PREPARING_CONTENT_BIT;
+		case LOADING_CONTENT:
+			return IDLE_BIT;
+		case PREPARING_CONTENT:
+			return LOADING_CONTENT_BIT;
+		case PREPARING:
+			return PREPARE_BITMASK | SEEK_TO_BITMASK;
+		case PREPARED:
+			return PREPARING;
+		case STARTED:
+			return START_BITMASK | PREPARING;
+		case PAUSED:
+			return PAUSE_BITMASK | PREPARING;
+		case STOPPED:
+			return STOP_BITMASK;
+		case PLAYBACK_COMPLETED:
+			return START_BITMASK | PREPARING;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Moves from exactly {@code expect} to {@code update}.
+	 * 
+	 * @return {@code false} if the state had already moved on, or if the
+	 *         transition table doesn't allow it.
+	 */
+	private boolean compareAndSetState(int expect, int update) {
+		if (!inState(expect, allowedFrom(update))
+				|| !mState.compareAndSet(expect, update)) {
+			return false;
+		}
+		onTransition(expect, update);
+		return true;
+	}
+
+	/**
+	 * Moves to {@code state} from whichever state we are in, if the transition
+	 * table allows it.
+	 */
+	private boolean transition(int state) {
+		int allowed = allowedFrom(state);
+		while (true) {
+			int current = getInternalState();
+			if (!inState(current, allowed)) {
+				return false;
+			}
+			if (mState.compareAndSet(current, state)) {
+				onTransition(current, state);
+				return true;
+			}
+		}
+	}
+
+	private void onTransition(int from, int to) {
 		mInErrorCallback = false;
+		mPositionAnchor = null;
+		mJournal.record(from, to);
+		PlaybackStatistics statistics = mStatistics;
+		if (statistics != null) {
+			if (to == PREPARED) {
+				statistics.onPrepared();
+			} else if (to == STARTED && !mBuffering
+					&& Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+				// Before O there's no callback for audio actually starting.
+				statistics.onAudioStarted();
+			}
+		}
 		onStateChanged();
 	}
 
+	/**
+	 * Attaches the statistics for the session this player is now playing,
+	 * or detaches them with {@code null}.
+	 */
+	public void setPlaybackStatistics(PlaybackStatistics statistics) {
+		mStatistics = statistics;
+		int state = getInternalState();
+		if (statistics != null && inState(state, PREPARED_BITMASK)) {
+			// Came out of the pool ready to go.
+			statistics.onPrepared();
+			if (state == STARTED
+					&& Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+				statistics.onAudioStarted();
+			}
+		}
+	}
+
+	public PlaybackStatistics getPlaybackStatistics() {
+		return mStatistics;
+	}
+
+	private static final int PREPARED_BITMASK = PREPARED | STARTED | PAUSED
+			| PLAYBACK_COMPLETED;
+
+	/**
+	 * @return The recent state transitions of this player and the timings
+	 *         worked out from them.
+	 */
+	public StateJournal getJournal() {
+		return mJournal;
+	}
+
 	protected void onStateChanged() {
-		if (mStateChangeListener != null) {
-			mStateChangeListener.onStateChanged(this, getStateMask());
+		final StateChangeListener listener = mStateChangeListener;
+		if (listener != null) {
+			final int stateMask = getStateMask();
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onStateChanged(StatelyPlayer.this, stateMask);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a listener callback behind any others from this player.
+	 */
+	protected void dispatch(Runnable callback) {
+		synchronized (mPendingCallbacks) {
+			mPendingCallbacks.add(callback);
+		}
+		dispatchPending();
+	}
+
+	private void dispatchPending() {
+		if (Thread.holdsLock(this)) {
+			getDispatchLane().post(mDispatchPending);
+			return;
+		}
+		while (true) {
+			Runnable callback;
+			synchronized (mPendingCallbacks) {
+				if (mDispatching || mPendingCallbacks.isEmpty()) {
+					// Someone else is already on it, and will pick up
+					// anything we've queued before they stop.
+					return;
+				}
+				callback = mPendingCallbacks.removeFirst();
+				mDispatching = true;
+			}
+			try {
+				callback.run();
+			} finally {
+				synchronized (mPendingCallbacks) {
+					mDispatching = false;
+				}
+			}
 		}
 	}
 
+	private static synchronized Handler getDispatchLane() {
+		if (sDispatchLane == null) {
+			sDispatchLane = new Handler(Looper.getMainLooper());
+		}
+		return sDispatchLane;
+	}
+
 	public static String getStateName(int state) {
 		switch (state) {
 		case END:
@@ -255,12 +549,15 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	@Override
-	public synchronized String getStateName() {
+	public String getStateName() {
 		return getStateName(getInternalState());
 	}
 
 	@Override
 	public synchronized void reset() {
+		cancelContentLoad();
+		unchain();
+		resetGains();
 		try {
 			if (getState() != IDLE) {
 				mMediaPlayer.reset();
@@ -270,23 +567,28 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 			Log.e(getStateName(), e);
 			throw e;
 		}
-		setState(IDLE);
+		transition(IDLE);
 	}
 
 	@Override
 	public synchronized void release() {
+		cancelContentLoad();
+		unchain();
+		resetGains();
 		mMediaPlayer.release();
-		setState(END);
+		transition(END);
 	}
 
+	private static final int PREPARE_BITMASK = INITIALIZED | STOPPED;
+
 	@Override
 	public synchronized void prepareAsync() throws IllegalStateException {
 		int state = getInternalState();
-		if ((state & (INITIALIZED | STOPPED)) != 0) {
+		if (inState(state, PREPARE_BITMASK)) {
 			mMediaPlayer.prepareAsync();
-			setState(PREPARING);
+			compareAndSetState(state, PREPARING);
 		} else if (state == LOADING_CONTENT) {
-			setState(PREPARING_CONTENT);
+			compareAndSetState(state, PREPARING_CONTENT);
 		} else {
 			throw illegalState("prepareAsync");
 		}
@@ -298,9 +600,9 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	@Override
 	public synchronized void start() throws IllegalStateException {
 		int state = getInternalState();
-		if ((state & START_BITMASK) != 0) {
+		if (inState(state, START_BITMASK)) {
 			mMediaPlayer.start();
-			setState(STARTED);
+			compareAndSetState(state, STARTED);
 		} else {
 			throw illegalState("start");
 		}
@@ -310,10 +612,11 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public synchronized void pause() throws IllegalStateException {
+		cancelFade();
 		int state = getInternalState();
-		if ((state & PAUSE_BITMASK) != 0) {
+		if (inState(state, PAUSE_BITMASK)) {
 			mMediaPlayer.pause();
-			setState(PAUSED);
+			compareAndSetState(state, PAUSED);
 		} else {
 			throw illegalState("pause");
 		}
@@ -325,9 +628,9 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	@Override
 	public synchronized void stop() throws IllegalStateException {
 		int state = getInternalState();
-		if ((state & (STOP_BITMASK)) != 0) {
+		if (inState(state, STOP_BITMASK)) {
 			mMediaPlayer.stop();
-			setState(STOPPED);
+			compareAndSetState(state, STOPPED);
 		} else {
 			throw illegalState("stop");
 		}
@@ -338,41 +641,193 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public synchronized void seekTo(int msec) {
+		cancelFade();
 		int state = getInternalState();
-		if ((state & SEEK_TO_BITMASK) != 0) {
-			mPrevState = getInternalState();
-			setState(PREPARING);
+		if (inState(state, SEEK_TO_BITMASK)) {
+			mPrevState = state;
+			mJournal.onSeek();
+			if (!compareAndSetState(state, PREPARING)) {
+				throw illegalState("seekTo");
+			}
 			mMediaPlayer.seekTo(msec);
 		} else {
 			throw illegalState("seekTo");
 		}
 	}
 
+	/**
+	 * Like the other getters, doesn't take the player's monitor. A reset or
+	 * release on another thread can get in first, and then the answer is
+	 * {@code false}.
+	 */
 	@Override
-	public synchronized boolean isPlaying() {
-		return mMediaPlayer.isPlaying();
+	public boolean isPlaying() {
+		try {
+			return mMediaPlayer.isPlaying();
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Names the player that takes over when this one completes, or
+	 * {@code null} for none.
+	 * <p>
+	 * From Jelly Bean on, if gapless playback is switched on and {@code next}
+	 * is already prepared, the MediaPlayer starts it by itself the moment
+	 * this one runs out, with no gap. Otherwise whoever is listening for
+	 * completion has to start it. Either way, the next player's
+	 * {@link StateJournal} records how long the hand over took.
+	 * 
+	 * @return {@code true} if the MediaPlayer will do the hand over itself.
+	 */
+	public synchronized boolean setNextPlayer(StatelyPlayer next) {
+		if (next == this) {
+			throw new IllegalArgumentException("A player can't follow itself");
+		}
+		return chain(next);
+	}
+
+	private boolean chain(StatelyPlayer next) {
+		StatelyPlayer previous = mNextPlayer;
+		if (previous != null && previous != next) {
+			previous.mPreviousPlayer = null;
+			previous.mJournal.cancelHandoff();
+		}
+		boolean chain = next != null && mGapless
+				&& next.getInternalState() == PREPARED;
+		if (chain || mChainedNatively) {
+			try {
+				mMediaPlayer.setNextMediaPlayer(chain ? next.mMediaPlayer
+						: null);
+			} catch (RuntimeException e) {
+				Log.e("Could not chain " + next + " after " + this, e);
+				chain = false;
+			}
+		}
+		mChainedNatively = chain;
+		mNextPlayer = next;
+		if (next != null && previous != next) {
+			next.mPreviousPlayer = this;
+			next.mJournal.armHandoff();
+		}
+		return chain;
+	}
+
+	/**
+	 * @return Whether {@code next} is chained to start inside the
+	 *         MediaPlayer when this one completes.
+	 */
+	public boolean isChainedTo(StatelyPlayer next) {
+		return next != null && mChainedNatively && mNextPlayer == next;
+	}
+
+	/*
+	 * Once this player loads something else, the one before it mustn't
+	 * start it. That player's monitor isn't taken here, so that players never
+	 * wait on each other.
+	 */
+	private void unchain() {
+		StatelyPlayer previous = mPreviousPlayer;
+		if (previous != null) {
+			mPreviousPlayer = null;
+			previous.dropNextPlayer(this);
+		}
+		if (mNextPlayer != null) {
+			chain(null);
+		}
+	}
+
+	private void dropNextPlayer(StatelyPlayer next) {
+		if (mNextPlayer != next) {
+			return;
+		}
+		mNextPlayer = null;
+		if (mChainedNatively) {
+			mChainedNatively = false;
+			try {
+				mMediaPlayer.setNextMediaPlayer(null);
+			} catch (RuntimeException e) {
+				Log.e("Could not unchain " + next + " from " + this, e);
+			}
+		}
 	}
 
 	private static final int GET_POSITION_BITMASK = STARTED | PAUSED | STOPPED
 			| PLAYBACK_COMPLETED;
 
+	/**
+	 * Where the player was at a point in time, and whether it was moving.
+	 * Positions in between are worked out from the clock.
+	 */
+	private static final class PositionAnchor {
+		final int state;
+		final int position;
+		final int duration;
+		final long time;
+
+		PositionAnchor(int state, int position, int duration, long time) {
+			this.state = state;
+			this.position = position;
+			this.duration = duration;
+			this.time = time;
+		}
+
+		int extrapolate(long now) {
+			if (state != STARTED) {
+				return position;
+			}
+			long extrapolated = position + (now - time);
+			if (duration > 0 && extrapolated > duration) {
+				return duration;
+			}
+			return (int) extrapolated;
+		}
+	}
+
+	/**
+	 * Positions are asked for far more often than they change in any way
+	 * that can't be predicted, so the MediaPlayer is only asked once per
+	 * refresh interval and after every transition; in between, the position
+	 * is worked out from the last answer and the clock.
+	 * <p>
+	 * The player's monitor isn't taken. If a reset or release on another
+	 * thread gets in between the state check and asking the MediaPlayer, the
+	 * last answer is used instead.
+	 */
 	@Override
-	public synchronized int getCurrentPosition() {
+	public int getCurrentPosition() {
 		int state = getInternalState();
-		if ((state & GET_POSITION_BITMASK) != 0) {
-			return mMediaPlayer.getCurrentPosition();
+		if (!inState(state, GET_POSITION_BITMASK)) {
+			return 0;
 		}
-		return 0;
+		long now = SystemClock.elapsedRealtime();
+		PositionAnchor anchor = mPositionAnchor;
+		if (anchor == null || anchor.state != state
+				|| now - anchor.time >= mPositionRefreshInterval) {
+			try {
+				anchor = new PositionAnchor(state,
+						mMediaPlayer.getCurrentPosition(), getDuration(), now);
+			} catch (IllegalStateException e) {
+				return anchor == null ? 0 : anchor.extrapolate(now);
+			}
+			mPositionAnchor = anchor;
+		}
+		return anchor.extrapolate(now);
 	}
 
 	private static final int GET_DURATION_BITMASK = PREPARED | STARTED | PAUSED
 			| PLAYBACK_COMPLETED;
 
 	@Override
-	public synchronized int getDuration() {
+	public int getDuration() {
 		int state = getInternalState();
-		if ((state & GET_DURATION_BITMASK) != 0) {
-			return mMediaPlayer.getDuration();
+		if (inState(state, GET_DURATION_BITMASK)) {
+			try {
+				return mMediaPlayer.getDuration();
+			} catch (IllegalStateException e) {
+				// Reset or released since the state was read.
+			}
 		}
 		return 0;
 	}
@@ -386,161 +841,468 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	public synchronized void setDataSource(final Context context, final Uri uri)
 			throws IllegalStateException, IOException,
 			IllegalArgumentException, SecurityException {
+		cancelContentLoad();
 		if (uri.getScheme().equals("content")) {
-			setState(LOADING_CONTENT);
-			(new Thread() {
-				@Override
-				public void run() {
-					synchronized (StatelyPlayer.this) {
-                        final ContentProviderClient contentProviderClient = context.getContentResolver().acquireContentProviderClient(uri);
-						try {
-							ParcelFileDescriptor fd = contentProviderClient.openFile(
-											uri, "r");
-							mMediaPlayer.setDataSource(fd.getFileDescriptor());
-							int state = getInternalState();
-							setState(INITIALIZED);
-							if ((state & PREPARING_CONTENT) != 0) {
-								prepareAsync();
-							}
-						} catch (Exception e) {
-							Log.e("Whoops", e);
-							try {
-								mMediaPlayer.setDataSource(uri.toString());
-								int state = getInternalState();
-								setState(INITIALIZED);
-								if ((state & PREPARING_CONTENT) != 0) {
-									prepareAsync();
-								}
-							} catch (Exception e1) {
-								Log.e("Whoops", e1);
-							}
-						} finally {
-                            contentProviderClient.release();
-                        }
-                    }
-				}
-			}).start();
+			transition(LOADING_CONTENT);
+			mContentLoad = getContentLoader().submit(
+					new ContentLoader(context, uri, mDataSourceGeneration));
 		} else if (uri.getScheme().equals("http") || uri.getScheme().equals("https")) {
 				mMediaPlayer.setDataSource(uri.toString());
-				setState(INITIALIZED);
+				transition(INITIALIZED);
+		} else if (ClipPack.isClip(uri)) {
+			ClipPack.Clip clip = ClipPack.getClip(uri);
+			setDataSource(clip.getFileDescriptor(), clip.getOffset(),
+					clip.getLength());
 		} else { 
 			mMediaPlayer.setDataSource(context, uri); 
-			setState(INITIALIZED); 
+			transition(INITIALIZED); 
 		} 
 	}
 
+	/**
+	 * Plays part of a file, such as one clip of a {@link ClipPack}. The
+	 * MediaPlayer keeps its own duplicate of the descriptor, so the caller
+	 * can close it or go on using it.
+	 */
+	@Override
+	public synchronized void setDataSource(FileDescriptor fd, long offset,
+			long length) throws IllegalStateException, IOException,
+			IllegalArgumentException {
+		cancelContentLoad();
+		mMediaPlayer.setDataSource(fd, offset, length);
+		transition(INITIALIZED);
+	}
+
+	private void cancelContentLoad() {
+		mDataSourceGeneration++;
+		if (mContentLoad != null) {
+			mContentLoad.cancel(true);
+			mContentLoad = null;
+		}
+	}
+
+	/**
+	 * Opens a content:// Uri off the calling thread. The provider is only
+	 * talked to without the player's monitor held; the monitor is taken just
+	 * long enough to hand the descriptor to the MediaPlayer, and only if
+	 * nothing has replaced this data source in the meantime.
+	 */
+	private class ContentLoader implements Runnable {
+		private final Context mContext;
+		private final Uri mUri;
+		private final int mGeneration;
+
+		ContentLoader(Context context, Uri uri, int generation) {
+			mContext = context;
+			mUri = uri;
+			mGeneration = generation;
+		}
+
+		@Override
+		public void run() {
+			long startedAt = SystemClock.elapsedRealtime();
+			ParcelFileDescriptor fd = null;
+			ContentProviderClient client = null;
+			try {
+				client = mContext.getContentResolver()
+						.acquireContentProviderClient(mUri);
+				if (client != null) {
+					fd = client.openFile(mUri, "r");
+				}
+			} catch (Exception e) {
+				Log.e("Couldn't open " + mUri, e);
+			} finally {
+				if (client != null) {
+					client.release();
+				}
+			}
+			long latency = SystemClock.elapsedRealtime() - startedAt;
+			try {
+				synchronized (StatelyPlayer.this) {
+					if (mGeneration != mDataSourceGeneration
+							|| Thread.currentThread().isInterrupted()) {
+						return;
+					}
+					mContentLoad = null;
+					mJournal.recordContentOpen(latency);
+					Log.d("Opened " + mUri + " in " + latency + "ms");
+					try {
+						if (fd != null) {
+							mMediaPlayer.setDataSource(fd.getFileDescriptor());
+						} else {
+							mMediaPlayer.setDataSource(mUri.toString());
+						}
+						onContentLoaded();
+					} catch (Exception e) {
+						Log.e("Whoops", e);
+					}
+				}
+			} finally {
+				// The MediaPlayer keeps its own duplicate of the descriptor.
+				if (fd != null) {
+					try {
+						fd.close();
+					} catch (IOException e) {
+						Log.e("Couldn't close " + mUri, e);
+					}
+				}
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getContentLoader() {
+		if (sContentLoader == null) {
+			sContentLoader = Executors.newFixedThreadPool(
+					CONTENT_LOADER_THREADS, new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"PlayerHater/ContentLoader");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sContentLoader;
+	}
+
+	// Called with the monitor held, once a content:// Uri has been opened.
+	private void onContentLoaded() {
+		int state = getInternalState();
+		if (compareAndSetState(state, INITIALIZED)
+				&& state == PREPARING_CONTENT) {
+			prepareAsync();
+		}
+	}
+
 	@Override
-	public synchronized void setOnErrorListener(OnErrorListener errorListener) {
+	public void setOnErrorListener(OnErrorListener errorListener) {
 		mListenerCollection.errorListener = errorListener;
 	}
 
 	@Override
-	public synchronized void setOnPreparedListener(
+	public void setOnPreparedListener(
 			OnPreparedListener preparedListener) {
 		mListenerCollection.preparedListener = preparedListener;
 	}
 
 	@Override
-	public synchronized void setOnBufferingUpdateListener(
+	public void setOnBufferingUpdateListener(
 			OnBufferingUpdateListener bufferingUpdateListener) {
 		mListenerCollection.bufferingUpdateListener = bufferingUpdateListener;
 	}
 
 	@Override
-	public synchronized void setOnCompletionListener(
+	public void setOnCompletionListener(
 			OnCompletionListener completionListener) {
 		mListenerCollection.completionListener = completionListener;
 	}
 
 	@Override
-	public synchronized void setOnInfoListener(OnInfoListener infoListener) {
+	public void setOnInfoListener(OnInfoListener infoListener) {
 		mListenerCollection.infoListener = infoListener;
 	}
 
 	@Override
-	public synchronized void setOnSeekCompleteListener(
+	public void setOnSeekCompleteListener(
 			OnSeekCompleteListener seekCompleteListener) {
 		mListenerCollection.seekCompleteListener = seekCompleteListener;
 	}
 
 	@Override
-	public synchronized void onBufferingUpdate(MediaPlayer mp, int percent) {
-		if (mListenerCollection.bufferingUpdateListener != null) {
-			mListenerCollection.bufferingUpdateListener.onBufferingUpdate(mp,
-					percent);
+	public void onBufferingUpdate(final MediaPlayer mp, final int percent) {
+		PlaybackStatistics statistics = mStatistics;
+		if (statistics != null) {
+			statistics.onBufferingUpdate(percent);
+		}
+		final OnBufferingUpdateListener listener = mListenerCollection.bufferingUpdateListener;
+		if (listener != null) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onBufferingUpdate(mp, percent);
+				}
+			});
 		}
 	}
 
 	@Override
-	public synchronized void onCompletion(MediaPlayer mp) {
-		if (mListenerCollection.completionListener != null) {
-			mListenerCollection.completionListener.onCompletion(mp);
+	public void onCompletion(final MediaPlayer mp) {
+		StatelyPlayer next = mNextPlayer;
+		if (next != null) {
+			next.mJournal.recordHandoffCompleted();
+		}
+		final OnCompletionListener listener = mListenerCollection.completionListener;
+		if (listener != null) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onCompletion(mp);
+				}
+			});
 		}
-		setState(PLAYBACK_COMPLETED);
+		transition(PLAYBACK_COMPLETED);
 	}
 
+	/**
+	 * Errors are always reported to the MediaPlayer as handled, since the
+	 * listener only hears about them later. If it turns out the listener
+	 * didn't handle one, {@link #onUnhandledError} gets to do what the
+	 * MediaPlayer would have done.
+	 */
 	@Override
-	public synchronized boolean onError(MediaPlayer mp, int what, int extra) {
-		if (mListenerCollection.errorListener != null) {
-			mInErrorCallback = true;
-			if (mListenerCollection.errorListener.onError(mp, what, extra)) {
-				if (mInErrorCallback) {
-					setState(ERROR);
+	public boolean onError(final MediaPlayer mp, final int what,
+			final int extra) {
+		final OnErrorListener listener = mListenerCollection.errorListener;
+		if (listener == null) {
+			transition(ERROR);
+			return false;
+		}
+		mInErrorCallback = true;
+		dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				if (listener.onError(mp, what, extra)) {
+					// Unless the listener has already moved us on.
+					if (mInErrorCallback) {
+						transition(ERROR);
+					}
+				} else {
+					transition(ERROR);
+					onUnhandledError(mp, what, extra);
 				}
-				return true;
 			}
-		}
-		setState(ERROR);
-		return false;
+		});
+		return true;
+	}
+
+	/**
+	 * Called on the dispatch lane when the error listener didn't handle an
+	 * error. By default this completes, as the MediaPlayer does for errors
+	 * nobody handles.
+	 */
+	protected void onUnhandledError(MediaPlayer mp, int what, int extra) {
+		onCompletion(mp);
 	}
 
 	@Override
-	public synchronized boolean onInfo(MediaPlayer mp, int what, int extra) {
+	public boolean onInfo(final MediaPlayer mp, final int what,
+			final int extra) {
+		// Nobody looks at what this returns, so the listener can hear about
+		// it later like everything else.
 		boolean handled = false;
-		if (mListenerCollection.infoListener != null) {
-			handled = mListenerCollection.infoListener.onInfo(mp, what, extra);
+		final OnInfoListener listener = mListenerCollection.infoListener;
+		if (listener != null) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onInfo(mp, what, extra);
+				}
+			});
 		}
 
+		PlaybackStatistics statistics = mStatistics;
 		switch (what) {
 		case MediaPlayer.MEDIA_INFO_BUFFERING_START:
 			mBuffering = true;
-			setState(PREPARING);
+			if (statistics != null) {
+				statistics.onBufferingStarted();
+			}
+			compareAndSetState(STARTED, PREPARING);
 			return true;
 		case MediaPlayer.MEDIA_INFO_BUFFERING_END:
 			mBuffering = false;
-			setState(STARTED);
+			if (statistics != null) {
+				statistics.onBufferingEnded();
+			}
+			compareAndSetState(PREPARING, STARTED);
 			return true;
+		case MEDIA_INFO_AUDIO_RENDERING_START:
+			if (statistics != null) {
+				statistics.onAudioStarted();
+			}
+			return handled;
 		case MediaPlayer.MEDIA_INFO_NOT_SEEKABLE:
 			mNotSeekable = true;
 			return true;
+		case MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT:
+			// The player before us ran out and the MediaPlayer chained
+			// straight on to us.
+			mPreviousPlayer = null;
+			compareAndSetState(PREPARED, STARTED);
+			return true;
 		default:
 			return handled;
 		}
 	}
 
 	@Override
-	public synchronized void onPrepared(MediaPlayer mp) {
-		if (mListenerCollection.preparedListener != null) {
-			mListenerCollection.preparedListener.onPrepared(mp);
+	public void onPrepared(final MediaPlayer mp) {
+		final OnPreparedListener listener = mListenerCollection.preparedListener;
+		if (listener != null) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onPrepared(mp);
+				}
+			});
 		}
-		setState(PREPARED);
+		compareAndSetState(PREPARING, PREPARED);
 	}
 
 	@Override
-	public synchronized void onSeekComplete(MediaPlayer mp) {
-		setState(mPrevState);
-		if (mListenerCollection.seekCompleteListener != null) {
-			mListenerCollection.seekCompleteListener.onSeekComplete(mp);
+	public void onSeekComplete(final MediaPlayer mp) {
+		compareAndSetState(PREPARING, mPrevState);
+		final OnSeekCompleteListener listener = mListenerCollection.seekCompleteListener;
+		if (listener != null) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					listener.onSeekComplete(mp);
+				}
+			});
 		}
 	}
 
 	@Override
-	public synchronized void setVolume(float leftVolume, float rightVolume) {
-		mMediaPlayer.setVolume(leftVolume, rightVolume);
+	public void setVolume(float leftVolume, float rightVolume) {
+		synchronized (mVolumeLock) {
+			mLeftVolume = leftVolume;
+			mRightVolume = rightVolume;
+			applyVolume();
+		}
+	}
+
+	/**
+	 * Ramps the fade gain, which scales whatever volume has been set. Any
+	 * fade already under way stops where it is and the new one carries on
+	 * from there. Pausing or seeking cancels a fade and puts the gain back
+	 * to 1.
+	 * 
+	 * @param duration
+	 *            In milliseconds; {@code 0} to jump straight there.
+	 * @param curve
+	 *            {@link VolumeAutomation#LINEAR} or
+	 *            {@link VolumeAutomation#EQUAL_POWER}.
+	 */
+	public void fadeTo(float gain, long duration, int curve) {
+		synchronized (mVolumeLock) {
+			if (mFade != null) {
+				mFade.cancel();
+			}
+			mFade = VolumeAutomation.ramp(mFadeTarget, mFadeGain, gain,
+					duration, curve);
+			mFade.start();
+		}
+	}
+
+	/**
+	 * Ramps the duck gain, which scales the volume on top of any fade.
+	 * Unlike a fade, ducking lasts through pauses and seeks.
+	 */
+	public void duckTo(float gain, long duration) {
+		synchronized (mVolumeLock) {
+			if (mDuck != null) {
+				mDuck.cancel();
+			}
+			mDuck = VolumeAutomation.ramp(mDuckTarget, mDuckGain, gain,
+					duration, VolumeAutomation.EQUAL_POWER);
+			mDuck.start();
+		}
+	}
+
+	/**
+	 * @return The gain the latest fade is heading for.
+	 */
+	public float getFadeGain() {
+		synchronized (mVolumeLock) {
+			return mFade == null ? mFadeGain : mFade.getTarget();
+		}
+	}
+
+	/**
+	 * @return The gain the latest duck is heading for.
+	 */
+	public float getDuckGain() {
+		synchronized (mVolumeLock) {
+			return mDuck == null ? mDuckGain : mDuck.getTarget();
+		}
+	}
+
+	private void cancelFade() {
+		synchronized (mVolumeLock) {
+			if (mFade != null) {
+				mFade.cancel();
+				mFade = null;
+				mFadeGain = 1.0f;
+				applyVolume();
+			}
+		}
+	}
+
+	private void resetGains() {
+		synchronized (mVolumeLock) {
+			if (mFade != null) {
+				mFade.cancel();
+				mFade = null;
+			}
+			if (mDuck != null) {
+				mDuck.cancel();
+				mDuck = null;
+			}
+			mFadeGain = 1.0f;
+			mDuckGain = 1.0f;
+			applyVolume();
+		}
+	}
+
+	private final VolumeAutomation.Target mFadeTarget = new VolumeAutomation.Target() {
+
+		@Override
+		public void setGain(VolumeAutomation.Ramp ramp, float gain) {
+			synchronized (mVolumeLock) {
+				if (ramp == mFade) {
+					mFadeGain = gain;
+					applyVolume();
+				}
+			}
+		}
+	};
+
+	private final VolumeAutomation.Target mDuckTarget = new VolumeAutomation.Target() {
+
+		@Override
+		public void setGain(VolumeAutomation.Ramp ramp, float gain) {
+			synchronized (mVolumeLock) {
+				if (ramp == mDuck) {
+					mDuckGain = gain;
+					applyVolume();
+				}
+			}
+		}
+	};
+
+	private void applyVolume() {
+		if (getInternalState() == END) {
+			return;
+		}
+		float gain = mFadeGain * mDuckGain;
+		try {
+			mMediaPlayer.setVolume(mLeftVolume * gain, mRightVolume * gain);
+		} catch (IllegalStateException e) {
+			Log.e("Could not set the volume of " + this, e);
+		}
 	}
 
 	@Override
-	public synchronized boolean equals(MediaPlayer mp) {
+	public boolean equals(MediaPlayer mp) {
 		return mp == mMediaPlayer;
 	}
 
@@ -550,17 +1312,43 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
     private void setWakeLock(Context context) {
-        PackageManager pm = context.getPackageManager();
-        String packageName = context.getPackageName();
-
-        if (pm.checkPermission(PERMISSION, packageName) == GRANTED) {
+        if (canWakeLock(context)) {
             mMediaPlayer.setWakeMode(context, WAKE_LOCK);
-        } else {
-            Log.d("You need to request wake lock permission to enable wake locking during playback.");
         }
     }
 
-	protected synchronized MediaPlayer getBarePlayer() {
+    // The answer can't change while we're running, so only ask once.
+    private static synchronized boolean canWakeLock(Context context) {
+        if (sCanWakeLock == null) {
+            PackageManager pm = context.getPackageManager();
+            String packageName = context.getPackageName();
+            sCanWakeLock = pm.checkPermission(PERMISSION, packageName) == GRANTED;
+            if (!sCanWakeLock) {
+                Log.d("You need to request wake lock permission to enable wake locking during playback.");
+            }
+        }
+        return sCanWakeLock;
+    }
+
+    // Resources can't change while we're running either.
+    private static synchronized int getPositionRefreshInterval(Context context) {
+        if (sPositionRefreshInterval < 0) {
+            sPositionRefreshInterval = Math.max(0, context.getResources()
+                    .getInteger(R.integer.zzz_ph_position_refresh_interval));
+        }
+        return sPositionRefreshInterval;
+    }
+
+    private static synchronized boolean isGapless(Context context) {
+        if (sGapless == null) {
+            sGapless = context.getResources().getBoolean(
+                    R.bool.zzz_ph_gapless)
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        }
+        return sGapless;
+    }
+
+	protected MediaPlayer getBarePlayer() {
 		return mMediaPlayer;
 	}
 
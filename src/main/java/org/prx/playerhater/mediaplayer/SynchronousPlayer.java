@@ -15,6 +15,9 @@
  ******************************************************************************/
 package org.prx.playerhater.mediaplayer;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnPreparedListener;
@@ -24,121 +27,112 @@ import android.net.Uri;
 public class SynchronousPlayer extends StatelyPlayer implements
 		OnPreparedListener, OnSeekCompleteListener {
 
-	private boolean mShouldPlayWhenPrepared;
-	private int mShouldSkipWhenPrepared;
-	private Uri mShouldSetDataSourceUri;
-	private Context mShouldSetPrepareContext;
+	private final CommandQueue<Source> mCommands = new CommandQueue<Source>();
+	private boolean mSeekInFlight;
+	private Uri mSourceUri;
 
 	public SynchronousPlayer(Context context) {
 		super(context);
 	}
 
+	SynchronousPlayer(MediaPlayer mediaPlayer) {
+		super(mediaPlayer);
+	}
+
+	SynchronousPlayer(MediaPlayer mediaPlayer, boolean gapless) {
+		super(mediaPlayer, gapless);
+	}
+
 	@Override
 	public synchronized void onPrepared(MediaPlayer mp) {
 		super.onPrepared(mp);
-		startIfNecessary();
+		runCommands();
 	}
 
 	@Override
 	public synchronized void onSeekComplete(MediaPlayer mp) {
+		mSeekInFlight = false;
 		super.onSeekComplete(mp);
-		startIfNecessary();
+		runCommands();
+	}
+
+	@Override
+	public synchronized void reset() {
+		// A reset MediaPlayer never reports the seek it dropped.
+		mSeekInFlight = false;
+		mSourceUri = null;
+		super.reset();
+	}
+
+	@Override
+	public synchronized void setDataSource(FileDescriptor fd, long offset,
+			long length) throws IOException {
+		// Nothing a later prepare could ask for again by Uri.
+		mSourceUri = null;
+		super.setDataSource(fd, offset, length);
 	}
 
 	@Override
 	public synchronized boolean prepare(Context context, Uri uri) {
-		mShouldPlayWhenPrepared = false;
-		mShouldSkipWhenPrepared = 0;
-		mShouldSetDataSourceUri = null;
-		mShouldSetPrepareContext = null;
-		switch (getState()) {
-		case IDLE:
-			try {
-				setDataSource(context, uri);
-			} catch (Exception e) {
-				return false;
-			}
-		case INITIALIZED:
-		case STOPPED:
-		case LOADING_CONTENT:
-			prepareAsync();
-			break;
-		case PREPARING:
-		case PREPARING_CONTENT:
-			mShouldSetDataSourceUri = uri;
-			mShouldSetPrepareContext = context;
-			break;
-		default:
-			reset();
-			try {
-				setDataSource(context, uri);
-			} catch (Exception e) {
-				return false;
-			}
-			try {
-				prepareAsync();
-			} catch (IllegalStateException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		return true;
+		mCommands.setSource(new Source(context, uri));
+		mCommands.prepare();
+		return runCommands();
 	}
 
 	@Override
 	public synchronized boolean prepareAndPlay(Context context, Uri uri,
 			int position) {
-		if (prepare(context, uri)) {
-			if (position != 0) {
-				mShouldPlayWhenPrepared = true;
-				seekTo(position);
-			} else {
-				start();
-			}
-			return true;
-		} else {
-			return false;
+		mCommands.setSource(new Source(context, uri));
+		mCommands.prepare();
+		if (position != 0) {
+			mCommands.seek(position);
 		}
+		mCommands.play();
+		return runCommands();
 	}
 
 	@Override
 	public synchronized void start() {
-		if (getState() == PREPARING) {
-			mShouldPlayWhenPrepared = true;
-			onStateChanged();
-		} else if (getState() == INITIALIZED || getState() == STOPPED) {
-			mShouldPlayWhenPrepared = true;
-			try {
-				prepareAsync();
-			} catch (Exception e) {}
-		} else {
+		int state = getState();
+		if (state == INITIALIZED || state == STOPPED) {
+			mCommands.prepare();
+		} else if (state != PREPARING && !mSeekInFlight
+				&& !mCommands.isPending(CommandQueue.SET_SOURCE
+						| CommandQueue.PREPARE | CommandQueue.SEEK)) {
 			super.start();
+			return;
 		}
+		mCommands.play();
+		onStateChanged();
+		runCommands();
 	}
 
+	/**
+	 * Seeks, keeping at most one seek outstanding on the MediaPlayer. A seek
+	 * asked for while another is still in flight (or before the player is
+	 * prepared) replaces any other waiting seek, so that when the player is
+	 * ready again it goes straight to the latest target. Seeks replaced like
+	 * this are counted in the player's {@link StateJournal}.
+	 */
 	@Override
 	public synchronized void seekTo(int msec) {
 		int state = getState();
-		if (state == PREPARING || state == INITIALIZED || state == STOPPED
-				|| state == LOADING_CONTENT || state == PREPARING_CONTENT) {
-			mShouldSkipWhenPrepared = msec;
-			if (state == INITIALIZED || state == STOPPED) {
-				prepareAsync();
+		if (state == IDLE || state == ERROR || state == END) {
+			if (!mCommands.isPending(CommandQueue.SET_SOURCE)) {
+				return;
 			}
-		} else if (state == PREPARED || state == PAUSED
-				|| state == PLAYBACK_COMPLETED) {
-			super.seekTo(msec);
-		} else if (state == STARTED) {
-			super.pause();
-			mShouldPlayWhenPrepared = true;
-			super.seekTo(msec);
+		} else if (state == INITIALIZED || state == STOPPED) {
+			mCommands.prepare();
 		}
+		if (mCommands.seek(msec)) {
+			getJournal().recordDroppedSeek();
+		}
+		runCommands();
 	}
 
 	@Override
 	public synchronized boolean conditionalPause() {
-		if (mShouldPlayWhenPrepared) {
-			mShouldPlayWhenPrepared = false;
+		if (mCommands.cancel(CommandQueue.PLAY)) {
 			return true;
 		} else if (getState() == STARTED) {
 			pause();
@@ -159,8 +153,7 @@ public class SynchronousPlayer extends StatelyPlayer implements
 
 	@Override
 	public synchronized boolean conditionalStop() {
-		if (mShouldPlayWhenPrepared) {
-			mShouldPlayWhenPrepared = false;
+		if (mCommands.cancel(CommandQueue.PLAY)) {
 			return true;
 		}
 		int state = getState();
@@ -173,25 +166,106 @@ public class SynchronousPlayer extends StatelyPlayer implements
 	}
 
 	@Override
-	public synchronized boolean isWaitingToPlay() {
+	public boolean isWaitingToPlay() {
 		return super.isWaitingToPlay()
-				|| (mShouldSkipWhenPrepared != 0 | mShouldPlayWhenPrepared);
+				|| mCommands.isPending(CommandQueue.SEEK | CommandQueue.PLAY);
+	}
+
+	/**
+	 * @return The commands this player is holding until it can carry them
+	 *         out. Only for reading counts from.
+	 */
+	public CommandQueue<?> getCommandQueue() {
+		return mCommands;
 	}
 
-	private void startIfNecessary() {
-		if (mShouldSetDataSourceUri != null) {
-			if (mShouldPlayWhenPrepared) {
-				prepareAndPlay(mShouldSetPrepareContext,
-						mShouldSetDataSourceUri, mShouldSkipWhenPrepared);
-			} else {
-				prepare(mShouldSetPrepareContext, mShouldSetDataSourceUri);
+	/**
+	 * Runs queued commands, in order, until one has to wait for the
+	 * MediaPlayer to report back.
+	 *
+	 * @return {@code false} if the source couldn't be set.
+	 */
+	private boolean runCommands() {
+		while (true) {
+			int state = getState();
+			switch (mCommands.peek()) {
+			case CommandQueue.SET_SOURCE:
+				if (!setSource(mCommands.takeSource(), state)) {
+					mCommands.clear();
+					return false;
+				}
+				break;
+			case CommandQueue.PREPARE:
+				mCommands.remove(CommandQueue.PREPARE);
+				if (state == INITIALIZED || state == STOPPED) {
+					try {
+						prepareAsync();
+					} catch (IllegalStateException e) {
+						mCommands.clear();
+						return true;
+					}
+				}
+				break;
+			case CommandQueue.SEEK:
+				if (mSeekInFlight || !isPrepared(state)) {
+					return true;
+				}
+				int msec = mCommands.takeSeekPosition();
+				if (state == STARTED) {
+					super.pause();
+					mCommands.play();
+				}
+				mSeekInFlight = true;
+				super.seekTo(msec);
+				return true;
+			case CommandQueue.PLAY:
+				if (mSeekInFlight || !isPrepared(state)) {
+					return true;
+				}
+				mCommands.remove(CommandQueue.PLAY);
+				start();
+				break;
+			default:
+				return true;
 			}
-		} else if (mShouldSkipWhenPrepared != 0) {
-			seekTo(mShouldSkipWhenPrepared);
-			mShouldSkipWhenPrepared = 0;
-		} else if (mShouldPlayWhenPrepared) {
-			start();
-			mShouldPlayWhenPrepared = false;
+		}
+	}
+
+	/**
+	 * Points the MediaPlayer at a new source. If it is already loading,
+	 * preparing or prepared with that same source, it is left alone rather
+	 * than being reset and prepared all over again.
+	 */
+	private boolean setSource(Source source, int state) {
+		if (source.uri.equals(mSourceUri)
+				&& (state == INITIALIZED || state == STOPPED
+						|| state == PREPARING || state == PREPARED)) {
+			return true;
+		}
+		if (state != IDLE) {
+			reset();
+		}
+		try {
+			setDataSource(source.context, source.uri);
+		} catch (Exception e) {
+			return false;
+		}
+		mSourceUri = source.uri;
+		return true;
+	}
+
+	private static boolean isPrepared(int state) {
+		return state == PREPARED || state == STARTED || state == PAUSED
+				|| state == PLAYBACK_COMPLETED;
+	}
+
+	private static final class Source {
+		final Context context;
+		final Uri uri;
+
+		Source(Context context, Uri uri) {
+			this.context = context;
+			this.uri = uri;
 		}
 	}
 
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * Moves gains smoothly from one value to another over time.
+ * <p>
+ * Every ramp in the process is stepped by the same single background thread,
+ * so a fade costs a scheduled task rather than a thread of its own. Each step
+ * works out where the ramp should be from the clock rather than adding a
+ * fixed increment. A late step therefore catches up instead of stretching the
+ * ramp, and the last step always lands exactly on the target.
+ */
+public final class VolumeAutomation {
+
+	/**
+	 * Moves the gain by the same amount every step.
+	 */
+	public static final int LINEAR = 0;
+
+	/**
+	 * Follows a quarter sine wave, so that two ramps going opposite ways keep
+	 * the combined power constant. Sounds smoother than {@link #LINEAR} for
+	 * fades and crossfades.
+	 */
+	public static final int EQUAL_POWER = 1;
+
+	// About one step per audio buffer, which is small enough not to click.
+	private static final long STEP_INTERVAL = 20;
+
+	private static ScheduledExecutorService sScheduler;
+
+	/**
+	 * Whatever a ramp is driving.
+	 */
+	public interface Target {
+		/**
+		 * Called for every step of a ramp that hasn't been cancelled, on the
+		 * automation thread unless the ramp has no duration.
+		 */
+		void setGain(Ramp ramp, float gain);
+	}
+
+	/**
+	 * A ramp that is running, or has finished.
+	 */
+	public static final class Ramp implements Runnable {
+		private final Target mTarget;
+		private final float mFrom;
+		private final float mTo;
+		private final long mDuration;
+		private final int mCurve;
+		private volatile long mStartedAt;
+		private volatile boolean mDone;
+		private ScheduledFuture<?> mFuture;
+
+		private Ramp(Target target, float from, float to, long duration,
+				int curve) {
+			mTarget = target;
+			mFrom = from;
+			mTo = to;
+			mDuration = duration;
+			mCurve = curve;
+		}
+
+		/**
+		 * Starts the ramp. One of no duration sets the target gain straight
+		 * away, on the calling thread.
+		 * 
+		 * @return This ramp.
+		 */
+		public Ramp start() {
+			if (mDuration <= 0 || mFrom == mTo) {
+				mTarget.setGain(this, mTo);
+				cancel();
+			} else {
+				schedule(getScheduler());
+			}
+			return this;
+		}
+
+		/**
+		 * Stops the ramp where it is. The target hears nothing more from it.
+		 */
+		public synchronized void cancel() {
+			mDone = true;
+			if (mFuture != null) {
+				mFuture.cancel(false);
+			}
+		}
+
+		public boolean isDone() {
+			return mDone;
+		}
+
+		/**
+		 * @return The gain the ramp is heading for.
+		 */
+		public float getTarget() {
+			return mTo;
+		}
+
+		@Override
+		public void run() {
+			if (mDone) {
+				return;
+			}
+			long elapsed = SystemClock.elapsedRealtime() - mStartedAt;
+			if (elapsed >= mDuration) {
+				mTarget.setGain(this, mTo);
+				cancel();
+			} else {
+				mTarget.setGain(this, valueAt((float) elapsed / mDuration));
+			}
+		}
+
+		private float valueAt(float progress) {
+			if (mCurve == EQUAL_POWER) {
+				double angle = progress * Math.PI / 2;
+				if (mTo > mFrom) {
+					return mFrom + (mTo - mFrom) * (float) Math.sin(angle);
+				} else {
+					return mTo + (mFrom - mTo) * (float) Math.cos(angle);
+				}
+			}
+			return mFrom + (mTo - mFrom) * progress;
+		}
+
+		private synchronized void schedule(ScheduledExecutorService scheduler) {
+			if (!mDone) {
+				mStartedAt = SystemClock.elapsedRealtime();
+				mFuture = scheduler.scheduleAtFixedRate(this, 0,
+						STEP_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private VolumeAutomation() {
+	}
+
+	/**
+	 * Sets up a ramp moving {@code target} from one gain to another. It
+	 * doesn't do anything until {@link Ramp#start()} is called, so the caller
+	 * can keep hold of it before the target hears from it.
+	 *
+	 * @param duration
+	 *            How long the ramp takes, in milliseconds.
+	 * @param curve
+	 *            {@link #LINEAR} or {@link #EQUAL_POWER}.
+	 */
+	public static Ramp ramp(Target target, float from, float to,
+			long duration, int curve) {
+		return new Ramp(target, from, to, duration, curve);
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (sScheduler == null) {
+			sScheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"PlayerHater/VolumeAutomation");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sScheduler;
+	}
+}
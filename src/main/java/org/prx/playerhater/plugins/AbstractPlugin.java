@@ -22,6 +22,7 @@ import android.net.Uri;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
 
 /**
  * A simple helper for writing {@linkplain PlayerHaterPlugin}s
@@ -85,6 +86,14 @@ public abstract class AbstractPlugin implements PlayerHaterPlugin {
     public void onAlbumTitleChanged(String albumTitle) {
     }
 
+    @Override
+    public void onPlaybackStatistics(Song song, PlaybackStatistics statistics) {
+    }
+
+    @Override
+    public void onDownloadProgress(Song song, long downloaded, long total) {
+    }
+
     @Override
     public void onAlbumArtChanged(Uri uri) {
     }
@@ -27,6 +27,7 @@ import android.os.Message;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
 
 import java.util.Arrays;
 import java.util.HashSet;
@@ -55,6 +56,8 @@ public class BackgroundedPlugin extends HandlerThread implements
     private static final int SERVICE_STOPPING = 17;
     private static final int CHANGES_COMPLETE = 18;
     private static final int TRANSPORT_CONTROL_FLAGS_CHANGED = 19;
+    private static final int PLAYBACK_STATISTICS = 20;
+    private static final int DOWNLOAD_PROGRESS = 21;
     private static final int CHANGES_COMPLETE_INTERNAL = -1;
     private static final Integer[] DEFAULT_FOREGROUND_ACTIONS = {
             CHANGES_COMPLETE, SERVICE_BOUND, PLAYER_HATER_LOADED,
@@ -194,6 +197,27 @@ public class BackgroundedPlugin extends HandlerThread implements
         mHandler.sendTargettedEmptyMessage(CHANGES_COMPLETE_INTERNAL);
     }
 
+    @Override
+    public void onPlaybackStatistics(Song song, PlaybackStatistics statistics) {
+        if (shouldHandleMessage(PLAYBACK_STATISTICS)) {
+            mPlugin.onPlaybackStatistics(song, statistics);
+        } else {
+            mHandler.obtainTargettedMessage(PLAYBACK_STATISTICS,
+                    new StatisticsObject(song, statistics)).sendToTarget();
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(Song song, long downloaded, long total) {
+        if (shouldHandleMessage(DOWNLOAD_PROGRESS)) {
+            mPlugin.onDownloadProgress(song, downloaded, total);
+        } else {
+            mHandler.obtainTargettedMessage(DOWNLOAD_PROGRESS,
+                    new DownloadProgressObject(song, downloaded, total))
+                    .sendToTarget();
+        }
+    }
+
     @Override
     public void onPlayerHaterShutdown() {
         mHandler.removeTargettedMessages(SERVICE_STOPPING);
@@ -364,6 +388,14 @@ public class BackgroundedPlugin extends HandlerThread implements
             case SERVICE_STOPPING:
                 mPlugin.onPlayerHaterShutdown();
                 break;
+            case PLAYBACK_STATISTICS:
+                StatisticsObject s = (StatisticsObject) msg.obj;
+                mPlugin.onPlaybackStatistics(s.song, s.statistics);
+                break;
+            case DOWNLOAD_PROGRESS:
+                DownloadProgressObject d = (DownloadProgressObject) msg.obj;
+                mPlugin.onDownloadProgress(d.song, d.downloaded, d.total);
+                break;
             default:
                 return false;
         }
@@ -380,6 +412,28 @@ public class BackgroundedPlugin extends HandlerThread implements
         }
     }
 
+    private static class StatisticsObject {
+        public final Song song;
+        public final PlaybackStatistics statistics;
+
+        public StatisticsObject(Song song, PlaybackStatistics statistics) {
+            this.song = song;
+            this.statistics = statistics;
+        }
+    }
+
+    private static class DownloadProgressObject {
+        public final Song song;
+        public final long downloaded;
+        public final long total;
+
+        public DownloadProgressObject(Song song, long downloaded, long total) {
+            this.song = song;
+            this.downloaded = downloaded;
+            this.total = total;
+        }
+    }
+
     private static class TargetableHandler extends Handler {
 
         public TargetableHandler() {
@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.os.Build;
 
 import org.prx.playerhater.Song;
+import org.prx.playerhater.util.HttpTransport;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -131,7 +132,11 @@ public class LockScreenControlsPlugin extends AudioFocusPlugin {
             } else {
                 InputStream stream = null;
                 try {
-                    stream = new URL(uri.toString()).openStream();
+                    if (HttpTransport.handles(uri)) {
+                        stream = HttpTransport.openStream(uri);
+                    } else {
+                        stream = new URL(uri.toString()).openStream();
+                    }
                     mAlbumArt = BitmapFactory.decodeStream(stream);
                 } catch (MalformedURLException e) {
                     mAlbumArt = null;
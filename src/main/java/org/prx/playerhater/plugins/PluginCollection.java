@@ -23,6 +23,7 @@ import android.util.SparseArray;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackStatistics;
 
 import java.util.HashSet;
 import java.util.Iterator;
@@ -332,6 +333,28 @@ public class PluginCollection implements PlayerHaterPlugin {
         }
     }
 
+    @Override
+    public void onPlaybackStatistics(Song song, PlaybackStatistics statistics) {
+        mLock.readLock().lock();
+        try {
+            for (PlayerHaterPlugin plugin : mPlugins)
+                plugin.onPlaybackStatistics(song, statistics);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(Song song, long downloaded, long total) {
+        mLock.readLock().lock();
+        try {
+            for (PlayerHaterPlugin plugin : mPlugins)
+                plugin.onDownloadProgress(song, downloaded, total);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
     @Override
     public void onPlayerHaterShutdown() {
         mLock.writeLock().lock();
@@ -254,11 +254,18 @@ public abstract class PlayerHaterService extends Service implements
     public boolean play() {
         mPausedInApp = false;
         if (playAllowed()) {
-            return peekMediaPlayer() != null && getMediaPlayer().conditionalPlay();
+            return playMediaPlayer();
         }
         return false;
     }
 
+    /**
+     * Plays the current player, if there is one.
+     */
+    protected boolean playMediaPlayer() {
+        return peekMediaPlayer() != null && getMediaPlayer().conditionalPlay();
+    }
+
     @Override
     public boolean play(int startTime) {
         mPausedInApp = false;
@@ -268,12 +275,28 @@ public abstract class PlayerHaterService extends Service implements
         return true;
     }
 
+    // Ducking ramps rather than jumping, so it doesn't click. Coming back up
+    // takes a little longer than going down, which is less noticeable.
+    private static final float DUCK_GAIN = 0.1f;
+    private static final long DUCK_DURATION = 250;
+    private static final long UNDUCK_DURATION = 500;
+
+    private volatile float mDuckGain = 1.0f;
+
     public void duck() {
-        getMediaPlayer().setVolume(0.1f, 0.1f);
+        mDuckGain = DUCK_GAIN;
+        PlaylistSupportingPlayer player = peekMediaPlayer();
+        if (player != null) {
+            player.duckTo(DUCK_GAIN, DUCK_DURATION);
+        }
     }
 
     public void unduck() {
-        getMediaPlayer().setVolume(1.0f, 1.0f);
+        mDuckGain = 1.0f;
+        PlaylistSupportingPlayer player = peekMediaPlayer();
+        if (player != null) {
+            player.duckTo(1.0f, UNDUCK_DURATION);
+        }
     }
 
 	/* END Generic Player Controls */
@@ -502,6 +525,9 @@ public abstract class PlayerHaterService extends Service implements
         boolean myTransaction = startTransaction();
         mPlayerStateWatcher.setMediaPlayer(mediaPlayer);
         mMediaPlayer = mediaPlayer;
+        if (mediaPlayer != null) {
+            mediaPlayer.duckTo(mDuckGain, 0);
+        }
         if (myTransaction) {
             commitTransaction();
         }
@@ -60,6 +60,10 @@ public class PlayerStateWatcher implements StateChangeListener {
 
     @Override
     public synchronized void onStateChanged(Player mediaPlayer, int state) {
+        if (mediaPlayer != mMediaPlayer) {
+            // A late callback from a player we've stopped watching.
+            return;
+        }
         boolean willPlay = StatelyPlayer.willPlay(state);
         boolean seekable = StatelyPlayer.seekable(state);
         state = StatelyPlayer.mediaPlayerState(state);
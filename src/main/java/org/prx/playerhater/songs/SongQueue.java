@@ -29,6 +29,7 @@ public class SongQueue {
 	private static Handler sHandler;
 	private static final int CURRENT_SONG = 1;
 	private static final int NEXT_SONG = 2;
+	private static final int QUEUE_CHANGED = 3;
 
 	private static Handler getHandler() {
 		if (sHandler == null) {
@@ -45,6 +46,9 @@ public class SongQueue {
 						break;
 					case NEXT_SONG:
 						m.queue.sendNextSongChanged(m.song, m.oldSong);
+						break;
+					case QUEUE_CHANGED:
+						m.queue.sendQueueChanged();
 					}
 				}
 
@@ -69,6 +73,12 @@ public class SongQueue {
 		public void onNowPlayingChanged(Song nowPlaying, Song nowPlayingWas);
 
 		public void onNextSongChanged(Song nextSong, Song nextSongWas);
+
+		/**
+		 * Called after any change to the queue, once the now playing and
+		 * next song callbacks for that change (if any) have been delivered.
+		 */
+		public void onQueueChanged();
 	}
 
 	private int mPlayheadPosition = -1;
@@ -156,6 +166,14 @@ public class SongQueue {
 	}
 
 	private void songOrderChanged(boolean notifyCurrent, boolean notifyNext) {
+		updateSongs(notifyCurrent, notifyNext);
+		if (mListener != null) {
+			getHandler().obtainMessage(QUEUE_CHANGED,
+					new SongMessage(this, null, null)).sendToTarget();
+		}
+	}
+
+	private void updateSongs(boolean notifyCurrent, boolean notifyNext) {
 		if (mSongs.size() > 0) {
 			if (getPlayheadPosition() == -1) {
 				setPlayheadPosition(1);
@@ -207,6 +225,10 @@ public class SongQueue {
 		mListener.onNextSongChanged(newNextSong, oldNextSong);
 	}
 
+	private void sendQueueChanged() {
+		mListener.onQueueChanged();
+	}
+
 	private Song getNextSong() {
 		if (getPlayheadPosition() >= mSongs.size()
 				|| getPlayheadPosition() <= 0) {
@@ -228,6 +250,24 @@ public class SongQueue {
 		return false;
 	}
 
+	/**
+	 * Looks at the song some distance from the one that is now playing
+	 * without moving the playhead.
+	 * 
+	 * @param offset
+	 *            How far from the now playing song to look. Negative values
+	 *            look back towards the start of the queue.
+	 * @return The song at that position, or {@code null} if there isn't one.
+	 */
+	public synchronized Song peek(int offset) {
+		int position = getPlayheadPosition() + offset;
+		if (getPlayheadPosition() <= 0 || position <= 0
+				|| position > mSongs.size()) {
+			return null;
+		}
+		return mSongs.get(position - 1);
+	}
+
 	public synchronized int size() {
 		return mSongs.size();
 	}
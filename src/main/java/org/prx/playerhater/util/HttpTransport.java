@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.net.Uri;
+
+/**
+ * The one HTTP client everything in PlayerHater goes over.
+ * <p>
+ * Connections are pooled and kept alive between requests, so resolving a
+ * playlist, fetching its artwork and prefetching the next song from the same
+ * host pay for the TCP and TLS handshakes once. The pool is limited overall
+ * and per host, and every request has connect and read timeouts.
+ * <p>
+ * A connection only goes back to the pool once its response body has been
+ * read to the end or closed. A request given up on part way should be
+ * aborted instead.
+ */
+public final class HttpTransport {
+
+	public static final int CONNECT_TIMEOUT = 10 * 1000;
+	public static final int READ_TIMEOUT = 20 * 1000;
+
+	private static final int MAX_CONNECTIONS = 8;
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+	// Most servers drop an idle keep-alive connection well before this.
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final String USER_AGENT = "PlayerHater";
+
+	private static DefaultHttpClient sClient;
+
+	private HttpTransport() {
+	}
+
+	public static synchronized HttpClient getClient() {
+		if (sClient == null) {
+			HttpParams params = new BasicHttpParams();
+			HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			HttpConnectionParams.setSocketBufferSize(params, 8192);
+			HttpProtocolParams.setUserAgent(params, USER_AGENT);
+			HttpClientParams.setRedirecting(params, true);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+			// How long to wait for a free connection when the pool is full.
+			ConnManagerParams.setTimeout(params, CONNECT_TIMEOUT);
+
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory
+					.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory
+					.getSocketFactory(), 443));
+
+			sClient = new DefaultHttpClient(new ThreadSafeClientConnManager(
+					params, registry), params);
+		}
+		return sClient;
+	}
+
+	/**
+	 * Executes a request on the shared client, first closing connections
+	 * that have sat idle for long enough that the server has likely dropped
+	 * them.
+	 */
+	public static HttpResponse execute(HttpUriRequest request)
+			throws IOException {
+		HttpClient client = getClient();
+		ClientConnectionManager manager = client.getConnectionManager();
+		manager.closeExpiredConnections();
+		manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		return client.execute(request);
+	}
+
+	/**
+	 * Opens the body of an http or https Uri. Closing the stream puts the
+	 * connection back in the pool.
+	 *
+	 * @throws IOException
+	 *             If the server answers with anything but success.
+	 */
+	public static InputStream openStream(Uri uri) throws IOException {
+		HttpGet get = new HttpGet(uri.toString());
+		HttpResponse response = execute(get);
+		int status = response.getStatusLine().getStatusCode();
+		HttpEntity entity = response.getEntity();
+		if (status < 200 || status >= 300 || entity == null) {
+			get.abort();
+			throw new IOException("HTTP " + status + " for " + uri);
+		}
+		return entity.getContent();
+	}
+
+	/**
+	 * @return Whether a Uri can be fetched with this client.
+	 */
+	public static boolean handles(Uri uri) {
+		String scheme = uri.getScheme();
+		return "http".equalsIgnoreCase(scheme)
+				|| "https".equalsIgnoreCase(scheme);
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Picks the quickest of several mirrors of a live stream.
+ * <p>
+ * The entries of a PLS playlist are usually the same station served from
+ * different hosts. Rather than trying them strictly in order, the first few
+ * are opened at once and the first to deliver {@link #PROBE_BYTES} wins.
+ * That takes in both how soon the first byte arrives and how fast the rest
+ * follow. The others are kept, in their original order, to fail over to.
+ * <p>
+ * Entries that turn out to be ordinary files, with a length, are a real
+ * playlist to be played in order, so nothing is raced for those.
+ */
+public final class MirrorRace {
+
+	/**
+	 * How long to wait for any mirror to win before giving up on racing.
+	 */
+	public static final long PROBE_TIMEOUT = 4 * 1000;
+
+	/**
+	 * How much of a stream a mirror has to deliver to win.
+	 */
+	public static final int PROBE_BYTES = 8 * 1024;
+
+	private static ExecutorService sProbers;
+
+	private MirrorRace() {
+	}
+
+	/**
+	 * Races the first {@code count} entries of a playlist.
+	 *
+	 * @return The playlist with the winner first, then the rest in their
+	 *         original order with any that failed their probe last. Or
+	 *         {@code null} if the entries aren't mirrors of a live stream,
+	 *         or none of them answered in time.
+	 */
+	public static Uri[] race(Uri[] uris, int count) {
+		count = Math.min(count, uris.length);
+		if (count < 2) {
+			return null;
+		}
+		CompletionService<Probe> service = new ExecutorCompletionService<Probe>(
+				getProbers());
+		Probe[] probes = new Probe[count];
+		Future<?>[] futures = new Future<?>[count];
+		for (int i = 0; i < count; i++) {
+			probes[i] = new Probe(uris[i]);
+			futures[i] = service.submit(probes[i]);
+		}
+
+		Probe winner = null;
+		boolean[] failed = new boolean[count];
+		long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT;
+		try {
+			for (int done = 0; done < count && winner == null; done++) {
+				long remaining = deadline - SystemClock.elapsedRealtime();
+				Future<Probe> future = service.poll(Math.max(remaining, 0),
+						TimeUnit.MILLISECONDS);
+				if (future == null) {
+					break;
+				}
+				try {
+					Probe probe = future.get();
+					if (!probe.isLive()) {
+						return null;
+					}
+					winner = probe;
+				} catch (ExecutionException e) {
+					for (int i = 0; i < count; i++) {
+						if (futures[i] == future) {
+							failed[i] = true;
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			for (Probe probe : probes) {
+				probe.abort();
+			}
+		}
+		if (winner == null) {
+			return null;
+		}
+		Log.d("Mirror " + winner.mUri + " won in " + winner.mElapsed
+				+ "ms (first byte after " + winner.mFirstByte + "ms)");
+
+		Uri[] result = new Uri[uris.length];
+		int position = 0;
+		result[position++] = winner.mUri;
+		for (int i = 0; i < uris.length; i++) {
+			if ((i >= count || !failed[i]) && uris[i] != winner.mUri) {
+				result[position++] = uris[i];
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (failed[i] && uris[i] != winner.mUri) {
+				result[position++] = uris[i];
+			}
+		}
+		return result;
+	}
+
+	private static synchronized ExecutorService getProbers() {
+		if (sProbers == null) {
+			sProbers = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PlayerHater/MirrorRace");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sProbers;
+	}
+
+	/*
+	 * Opens one mirror and reads the start of it. Aborting it drops the
+	 * connection, which is the only way to stop a blocked read.
+	 */
+	private static final class Probe implements Callable<Probe> {
+		private final Uri mUri;
+		private HttpGet mRequest;
+		private boolean mAborted;
+		private boolean mLive;
+		private long mFirstByte;
+		private long mElapsed;
+
+		Probe(Uri uri) {
+			mUri = uri;
+		}
+
+		@Override
+		public Probe call() throws IOException {
+			try {
+				HttpGet request;
+				synchronized (this) {
+					if (mAborted) {
+						throw new IOException("Aborted");
+					}
+					request = mRequest = new HttpGet(mUri.toString());
+				}
+				long startedAt = SystemClock.elapsedRealtime();
+				HttpResponse response = HttpTransport.execute(request);
+				int status = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if (status < 200 || status >= 300 || entity == null) {
+					throw new IOException("HTTP " + status);
+				}
+				mLive = entity.getContentLength() < 0 || hasIcyHeaders(response);
+
+				InputStream in = entity.getContent();
+				byte[] buffer = new byte[PROBE_BYTES];
+				int total = 0;
+				int read;
+				while (total < PROBE_BYTES
+						&& (read = in.read(buffer, total, PROBE_BYTES - total)) != -1) {
+					if (total == 0) {
+						mFirstByte = SystemClock.elapsedRealtime() - startedAt;
+					}
+					total += read;
+				}
+				if (total == 0) {
+					throw new IOException("Empty");
+				}
+				mElapsed = SystemClock.elapsedRealtime() - startedAt;
+				return this;
+			} finally {
+				abort();
+			}
+		}
+
+		boolean isLive() {
+			return mLive;
+		}
+
+		synchronized void abort() {
+			mAborted = true;
+			if (mRequest != null) {
+				mRequest.abort();
+			}
+		}
+
+		private static boolean hasIcyHeaders(HttpResponse response) {
+			for (Header header : response.getAllHeaders()) {
+				if (header.getName().regionMatches(true, 0, "icy-", 0, 4)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
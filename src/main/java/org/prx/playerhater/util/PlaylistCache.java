@@ -0,0 +1,456 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Remembers what playlist Uris resolved to, so that tuning back to a station
+ * doesn't have to go over the network again.
+ * <p>
+ * Each level of a playlist is cached separately, keyed by its Uri. An entry
+ * is fresh for the {@code max-age} the server gave it, or for
+ * {@link #DEFAULT_TTL} if it gave none. Once an entry goes stale it is kept,
+ * and if the server sent an {@code ETag} or {@code Last-Modified} it is
+ * revalidated with a conditional request rather than fetched again.
+ * <p>
+ * Recently used entries are held in memory. Entries are also written to the
+ * cache directory, so they survive the process going away. Only the
+ * {@link #DISK_CAPACITY} most recently written are kept there.
+ */
+public final class PlaylistCache {
+
+	/**
+	 * How long an entry stays fresh when the server doesn't say.
+	 */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	/**
+	 * How many entries are kept on disk.
+	 */
+	public static final int DISK_CAPACITY = 256;
+
+	private static final int MEMORY_CAPACITY = 32;
+	private static final String DIRECTORY = "playerhater-playlists";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int FORMAT_VERSION = 1;
+
+	private static PlaylistCache sInstance;
+
+	/**
+	 * What one Uri resolved to, and what is needed to check it's still
+	 * right.
+	 */
+	public static final class Entry {
+		private final Uri[] mUris;
+		private final String mETag;
+		private final String mLastModified;
+		private final long mLatency;
+		private volatile long mValidatedAt;
+		private volatile long mTtl;
+
+		Entry(Uri[] uris, String eTag, String lastModified, long latency,
+				long validatedAt, long ttl) {
+			mUris = uris;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mLatency = latency;
+			mValidatedAt = validatedAt;
+			mTtl = ttl;
+		}
+
+		public Uri[] getUris() {
+			return mUris.clone();
+		}
+
+		public boolean isFresh() {
+			return System.currentTimeMillis() - mValidatedAt < mTtl;
+		}
+
+		/**
+		 * Adds the headers that ask the server to only answer in full if
+		 * this entry has changed.
+		 */
+		public void addValidators(HttpMessage request) {
+			if (mETag != null) {
+				request.addHeader("If-None-Match", mETag);
+			}
+			if (mLastModified != null) {
+				request.addHeader("If-Modified-Since", mLastModified);
+			}
+		}
+
+		/**
+		 * @return How long resolving this Uri took over the network.
+		 */
+		public long getLatency() {
+			return mLatency;
+		}
+	}
+
+	private final File mDirectory;
+	private final Map<Uri, Entry> mEntries = new LinkedHashMap<Uri, Entry>(
+			MEMORY_CAPACITY * 2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Uri, Entry> eldest) {
+			return size() > MEMORY_CAPACITY;
+		}
+	};
+
+	private int mHits;
+	private int mRevalidations;
+	private int mMisses;
+	private long mSavedLatency;
+
+	public static synchronized PlaylistCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new PlaylistCache(new File(context.getApplicationContext()
+					.getCacheDir(), DIRECTORY));
+		}
+		return sInstance;
+	}
+
+	private PlaylistCache(File directory) {
+		mDirectory = directory;
+		// Left by a process that died part way through a write. Nothing
+		// else can be writing yet.
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (isTemp(file)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The entry for a Uri, fresh or stale, or {@code null} if there
+	 *         isn't one.
+	 */
+	public synchronized Entry get(Uri uri) {
+		Entry entry = mEntries.get(uri);
+		if (entry == null) {
+			entry = read(uri);
+			if (entry != null) {
+				mEntries.put(uri, entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Stores what a Uri resolved to, along with the caching headers of the
+	 * response it came from. Nothing is stored if the server asked for it
+	 * not to be.
+	 */
+	public void put(Uri uri, Uri[] uris, HttpResponse response, long latency) {
+		synchronized (this) {
+			mMisses++;
+		}
+		long ttl = getTtl(response);
+		if (ttl < 0) {
+			remove(uri);
+			return;
+		}
+		Entry entry = new Entry(uris.clone(), headerValue(response, "ETag"),
+				headerValue(response, "Last-Modified"), latency,
+				System.currentTimeMillis(), ttl);
+		synchronized (this) {
+			mEntries.put(uri, entry);
+		}
+		write(uri, entry);
+	}
+
+	/**
+	 * Counts a fresh entry being used in place of a network request.
+	 */
+	public synchronized void onHit(Entry entry) {
+		mHits++;
+		mSavedLatency += entry.mLatency;
+	}
+
+	/**
+	 * Marks a stale entry as good for another lifetime after the server
+	 * answered a conditional request with 304 Not Modified.
+	 *
+	 * @param latency
+	 *            How long the conditional request took.
+	 */
+	public void onRevalidated(Uri uri, Entry entry, HttpResponse response,
+			long latency) {
+		long ttl = getTtl(response);
+		entry.mValidatedAt = System.currentTimeMillis();
+		if (ttl >= 0) {
+			entry.mTtl = ttl;
+		}
+		synchronized (this) {
+			mRevalidations++;
+			mSavedLatency += Math.max(0, entry.mLatency - latency);
+		}
+		write(uri, entry);
+	}
+
+	public synchronized void remove(Uri uri) {
+		mEntries.remove(uri);
+		file(uri).delete();
+	}
+
+	/**
+	 * @return How many times a fresh entry was used without going to the
+	 *         network at all.
+	 */
+	public synchronized int getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return How many times a stale entry was confirmed by a conditional
+	 *         request.
+	 */
+	public synchronized int getRevalidationCount() {
+		return mRevalidations;
+	}
+
+	/**
+	 * @return How many times a Uri had to be resolved in full.
+	 */
+	public synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * @return The fraction of lookups answered without resolving in full,
+	 *         counting revalidations.
+	 */
+	public synchronized float getHitRate() {
+		int total = mHits + mRevalidations + mMisses;
+		return total == 0 ? 0 : (float) (mHits + mRevalidations) / total;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, that resolving would have
+	 *         taken without the cache.
+	 */
+	public synchronized long getSavedLatency() {
+		return mSavedLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PlaylistCache[hits=" + mHits + ", revalidations="
+				+ mRevalidations + ", misses=" + mMisses + ", saved="
+				+ mSavedLatency + "ms]";
+	}
+
+	/*
+	 * -1 if the response mustn't be stored, 0 if it has to be revalidated
+	 * every time, otherwise how long it stays fresh.
+	 */
+	private static long getTtl(HttpResponse response) {
+		String cacheControl = headerValue(response, "Cache-Control");
+		if (cacheControl == null) {
+			return DEFAULT_TTL;
+		}
+		long ttl = DEFAULT_TTL;
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+			if (directive.equals("no-store")) {
+				return -1;
+			} else if (directive.equals("no-cache")) {
+				ttl = 0;
+			} else if (directive.startsWith("max-age=")) {
+				try {
+					ttl = Long.parseLong(directive.substring(8).trim()) * 1000;
+				} catch (NumberFormatException e) {
+					// Leave the default.
+				}
+			}
+		}
+		return Math.max(0, ttl);
+	}
+
+	private static String headerValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	private File file(Uri uri) {
+		return new File(mDirectory, Integer.toHexString(uri.toString()
+				.hashCode()));
+	}
+
+	private Entry read(Uri uri) {
+		File file = file(uri);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != FORMAT_VERSION
+					|| !in.readUTF().equals(uri.toString())) {
+				// Another Uri with the same hash, or an old format.
+				return null;
+			}
+			long validatedAt = in.readLong();
+			long ttl = in.readLong();
+			long latency = in.readLong();
+			String eTag = readOptional(in);
+			String lastModified = readOptional(in);
+			Uri[] uris = new Uri[in.readInt()];
+			for (int i = 0; i < uris.length; i++) {
+				uris[i] = Uri.parse(in.readUTF());
+			}
+			return new Entry(uris, eTag, lastModified, latency, validatedAt,
+					ttl);
+		} catch (IOException e) {
+			Log.e("Could not read the cached playlist for " + uri, e);
+			file.delete();
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private void write(Uri uri, Entry entry) {
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			return;
+		}
+		File file = file(uri);
+		// Named uniquely, as the same Uri can be resolved on two threads
+		// at once.
+		File temp = null;
+		DataOutputStream out = null;
+		try {
+			temp = File.createTempFile("playlist", TEMP_SUFFIX, mDirectory);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(uri.toString());
+			out.writeLong(entry.mValidatedAt);
+			out.writeLong(entry.mTtl);
+			out.writeLong(entry.mLatency);
+			writeOptional(out, entry.mETag);
+			writeOptional(out, entry.mLastModified);
+			out.writeInt(entry.mUris.length);
+			for (Uri entryUri : entry.mUris) {
+				out.writeUTF(entryUri.toString());
+			}
+			out.close();
+			out = null;
+			synchronized (this) {
+				if (!temp.renameTo(file)) {
+					temp.delete();
+				}
+				trim();
+			}
+		} catch (IOException e) {
+			Log.e("Could not cache the playlist for " + uri, e);
+			if (temp != null) {
+				temp.delete();
+			}
+		} finally {
+			close(out);
+		}
+	}
+
+	/*
+	 * Deletes the entries written longest ago until no more than
+	 * DISK_CAPACITY are left on disk. Entries still being written are left
+	 * alone.
+	 */
+	private synchronized void trim() {
+		File[] files = mDirectory.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return !isTemp(file);
+			}
+		});
+		if (files == null || files.length <= DISK_CAPACITY) {
+			return;
+		}
+		// Other threads may be writing entries, so each time is read once.
+		final Map<File, Long> lastModified = new HashMap<File, Long>();
+		for (File file : files) {
+			lastModified.put(file, file.lastModified());
+		}
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long difference = lastModified.get(lhs)
+						- lastModified.get(rhs);
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < files.length - DISK_CAPACITY; i++) {
+			files[i].delete();
+		}
+	}
+
+	private static boolean isTemp(File file) {
+		return file.getName().endsWith(TEMP_SUFFIX);
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeOptional(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing more to be done.
+			}
+		}
+	}
+}
@@ -16,7 +16,10 @@
 
 package org.prx.playerhater.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
@@ -24,105 +27,369 @@ import java.util.ArrayList;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
 
+import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 
+/**
+ * Works out whether a Uri is a playlist, and if so what it lists.
+ * <p>
+ * This takes a single GET, asking for no more than
+ * {@link #MAX_PLAYLIST_BYTES}. The Content-Type usually decides it. When it
+ * doesn't, the first few bytes of the body are looked at instead. Audio is
+ * given up on as soon as it is recognised, leaving the MediaPlayer to open
+ * its own connection. Playlists are read a line at a time as they arrive.
+ */
 public final class PlaylistParser {
 
+	/**
+	 * The most of a response body that is read. No playlist worth playing
+	 * is bigger than this, and a stream served as a playlist is cut off here.
+	 */
+	public static final int MAX_PLAYLIST_BYTES = 64 * 1024;
+
+	private static final int SNIFF_BYTES = 16;
+
+	private static final int UNKNOWN = 0;
+	private static final int AUDIO = 1;
+	private static final int PLS = 2;
+	private static final int M3U = 3;
+
 	private static String[] PLS_MIME_TYPES = new String[] { "audio/scpls",
 			"audio/x-scpls" };
-	private static String[] M3U_MIME_TYPES = new String[] { "audio/x-mpegurl" };
+	private static String[] M3U_MIME_TYPES = new String[] { "audio/x-mpegurl",
+			"audio/mpegurl" };
+	// Anything labelled like this could be anything, so the body decides.
+	private static String[] VAGUE_MIME_TYPES = new String[] { "text/plain",
+			"application/octet-stream", "binary/octet-stream" };
+
+	/**
+	 * Hears about each request made while resolving, so that it can be given
+	 * deadlines or aborted from another thread.
+	 */
+	public interface RequestObserver {
+		/**
+		 * Called before the request is sent.
+		 *
+		 * @throws IOException
+		 *             If it shouldn't be sent after all.
+		 */
+		void onRequest(HttpUriRequest request) throws IOException;
+
+		void onRequestFinished(HttpUriRequest request);
+	}
 
 	public static Uri[] parsePlaylist(Uri uri) {
+		return parsePlaylist(null, uri);
+	}
+
+	/**
+	 * Like {@link #parsePlaylist(Context, Uri, RequestObserver)}, but a Uri
+	 * that can't be fetched resolves to itself.
+	 */
+	public static Uri[] parsePlaylist(Context context, Uri uri) {
 		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpHead(uri
-					.toString()));
-			Header contentType = response.getEntity().getContentType();
-			if (contentType != null) {
-				String mimeType = contentType.getValue().split(";")[0].trim();
-
-				for (String plsMimeType : PLS_MIME_TYPES) {
-					if (plsMimeType.equalsIgnoreCase(mimeType)) {
-						return parsePls(uri);
-					}
-				}
+			return parsePlaylist(context, uri, null);
+		} catch (IOException e) {
+			return new Uri[] { uri };
+		}
+	}
+
+	/**
+	 * Resolves one level of a playlist. With a context, what it resolved to
+	 * is kept in the {@link PlaylistCache} and used until it goes stale.
+	 *
+	 * @throws IOException
+	 *             If the request fails, times out or is aborted.
+	 */
+	public static Uri[] parsePlaylist(Context context, Uri uri,
+			RequestObserver observer) throws IOException {
+		PlaylistCache cache = null;
+		PlaylistCache.Entry cached = null;
+		if (context != null) {
+			cache = PlaylistCache.getInstance(context);
+			cached = cache.get(uri);
+			if (cached != null && cached.isFresh()) {
+				cache.onHit(cached);
+				return cached.getUris();
+			}
+		}
+		long startedAt = SystemClock.elapsedRealtime();
+		HttpGet get = null;
+		try {
+			get = new HttpGet(uri.toString());
+			get.addHeader("Range", "bytes=0-" + (MAX_PLAYLIST_BYTES - 1));
+			if (cached != null) {
+				cached.addValidators(get);
+			}
+			if (observer != null) {
+				observer.onRequest(get);
+			}
+			HttpResponse response = HttpTransport.execute(get);
+			int status = response.getStatusLine().getStatusCode();
+			if (cached != null && status == HttpStatus.SC_NOT_MODIFIED) {
+				cache.onRevalidated(uri, cached, response,
+						SystemClock.elapsedRealtime() - startedAt);
+				return cached.getUris();
+			}
+			if (status < 200 || status >= 300) {
+				return new Uri[] { uri };
+			}
 
-				for (String m3uMimeType : M3U_MIME_TYPES) {
-					if (m3uMimeType.equalsIgnoreCase(mimeType)) {
-						return parseM3u(uri);
-					}
+			Uri[] result = read(uri, response);
+			if (result == null) {
+				// Looked like a playlist but couldn't be read; try again
+				// next time rather than remembering that.
+				return new Uri[] { uri };
+			}
+			if (cache != null) {
+				cache.put(uri, result, response,
+						SystemClock.elapsedRealtime() - startedAt);
+			}
+			return result;
+		} catch (RuntimeException e) {
+			// A Uri HttpClient won't take, or a response it can't make
+			// sense of. Let the MediaPlayer have a go.
+			Log.d("Could not resolve " + uri + ": " + e);
+		} finally {
+			if (get != null) {
+				if (observer != null) {
+					observer.onRequestFinished(get);
 				}
+				// A body read to the end has already gone back to the pool.
+				// Anything else, like an audio stream, is dropped rather
+				// than waited for.
+				get.abort();
 			}
-		} catch (Exception e) {}
+		}
 		return new Uri[] { uri };
 	}
 
-	private static Uri[] parsePls(Uri uri) {
-		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpGet(uri.toString()));
-			HttpEntity entity = response.getEntity();
-			InputStream inputStream = entity.getContent();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					inputStream));
-			String header = reader.readLine();
-			if (header.trim().equalsIgnoreCase("[playlist]")) {
-				String line;
-				ArrayList<Uri> uriList = new ArrayList<Uri>();
-				do {
-					line = reader.readLine();
-					if (line != null) {
-						if (line.startsWith("File")) {
-							String fileName = line.substring(
-									line.indexOf("=") + 1).trim();
-							uriList.add(Uri.parse(fileName));
-						}
-					}
-				} while (line != null);
-				if (uriList.size() > 0) {
-					Uri[] res = new Uri[uriList.size()];
-					return uriList.toArray(res);
+	/*
+	 * What a response lists, just the Uri itself if it isn't a playlist, or
+	 * null if it seemed to be one but nothing could be read from it.
+	 */
+	private static Uri[] read(Uri uri, HttpResponse response)
+			throws IOException {
+		HttpEntity entity = response.getEntity();
+		int type = typeOf(response.getFirstHeader("Content-Type"));
+		if (entity == null || type == AUDIO) {
+			return new Uri[] { uri };
+		}
+		InputStream in = new BufferedInputStream(new CappedInputStream(
+				entity.getContent(), MAX_PLAYLIST_BYTES));
+		if (type == UNKNOWN) {
+			type = sniff(in);
+		}
+		switch (type) {
+		case PLS:
+			return parsePls(in);
+		case M3U:
+			return parseM3u(uri, in);
+		default:
+			return new Uri[] { uri };
+		}
+	}
+
+	private static int typeOf(Header contentType) {
+		if (contentType == null) {
+			return UNKNOWN;
+		}
+		String mimeType = contentType.getValue().split(";")[0].trim();
+		if (matches(mimeType, PLS_MIME_TYPES)) {
+			return PLS;
+		} else if (matches(mimeType, M3U_MIME_TYPES)) {
+			return M3U;
+		} else if (mimeType.length() == 0
+				|| matches(mimeType, VAGUE_MIME_TYPES)) {
+			return UNKNOWN;
+		} else if (mimeType.regionMatches(true, 0, "audio/", 0, 6)) {
+			return AUDIO;
+		}
+		return UNKNOWN;
+	}
+
+	private static boolean matches(String mimeType, String[] mimeTypes) {
+		for (String candidate : mimeTypes) {
+			if (candidate.equalsIgnoreCase(mimeType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Looks at the first bytes without consuming them.
+	 */
+	private static int sniff(InputStream in) throws IOException {
+		byte[] bytes = new byte[SNIFF_BYTES];
+		in.mark(SNIFF_BYTES);
+		int length = 0;
+		int read;
+		while (length < bytes.length
+				&& (read = in.read(bytes, length, bytes.length - length)) != -1) {
+			length += read;
+		}
+		in.reset();
+
+		if (startsWith(bytes, length, 0, "ID3")
+				|| startsWith(bytes, length, 0, "OggS")
+				|| startsWith(bytes, length, 0, "fLaC")
+				|| startsWith(bytes, length, 0, "RIFF")
+				|| startsWith(bytes, length, 4, "ftyp")
+				|| (length >= 2 && (bytes[0] & 0xFF) == 0xFF
+						&& (bytes[1] & 0xE0) == 0xE0)) {
+			// ID3 tag, Ogg, FLAC, WAV, MP4 or an MPEG/ADTS frame sync.
+			return AUDIO;
+		}
+
+		int start = 0;
+		if (length >= 3 && (bytes[0] & 0xFF) == 0xEF
+				&& (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+			start = 3;
+		}
+		while (start < length && bytes[start] <= ' ' && bytes[start] >= 0) {
+			start++;
+		}
+		if (startsWith(bytes, length, start, "[playlist]")) {
+			return PLS;
+		} else if (startsWith(bytes, length, start, "#EXTM3U")) {
+			return M3U;
+		}
+		return UNKNOWN;
+	}
+
+	private static boolean startsWith(byte[] bytes, int length, int offset,
+			String prefix) {
+		if (length - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (Character.toLowerCase((char) bytes[offset + i]) != Character
+					.toLowerCase(prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Uri[] parsePls(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		String header = nextLine(reader);
+		if (header == null || !header.equalsIgnoreCase("[playlist]")) {
+			return null;
+		}
+		ArrayList<Uri> uriList = new ArrayList<Uri>();
+		String line;
+		while ((line = nextLine(reader)) != null) {
+			if (line.regionMatches(true, 0, "File", 0, 4)) {
+				String fileName = line.substring(line.indexOf("=") + 1).trim();
+				if (fileName.length() > 0) {
+					uriList.add(Uri.parse(fileName));
 				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-		return new Uri[] { uri };
+		return toArray(uriList);
 	}
 
-	private static Uri[] parseM3u(Uri uri) {
+	private static Uri[] parseM3u(Uri uri, InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		ArrayList<Uri> uriList = new ArrayList<Uri>();
+		String line;
+		while ((line = nextLine(reader)) != null) {
+			if (line.startsWith("#EXT-X-")) {
+				// An HLS playlist, which the MediaPlayer plays itself.
+				return new Uri[] { uri };
+			} else if (!line.startsWith("#")) {
+				uriList.add(Uri.parse(line));
+			}
+		}
+		return toArray(uriList);
+	}
 
-		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpGet(uri
-					.toString()));
-			HttpEntity entity = response.getEntity();
-			InputStream inputStream = entity.getContent();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					inputStream));
-			String line;
-			ArrayList<Uri> uriList = new ArrayList<Uri>();
-			do {
-				line = reader.readLine();
-				if (line != null) {
-					if (!line.startsWith("#")) {
-						uriList.add(Uri.parse(line.trim()));
-					}
+	/*
+	 * The next line that isn't blank, trimmed.
+	 */
+	private static String nextLine(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() > 0) {
+				if (line.charAt(0) == '\uFEFF') {
+					line = line.substring(1).trim();
 				}
-			} while (line != null);
-			if (uriList.size() > 0) {
-				Uri[] res = new Uri[uriList.size()];
-				return uriList.toArray(res);
+				return line;
 			}
-		} catch (Exception e) {
+		}
+		return null;
+	}
 
+	private static Uri[] toArray(ArrayList<Uri> uriList) {
+		if (uriList.size() > 0) {
+			Uri[] res = new Uri[uriList.size()];
+			return uriList.toArray(res);
 		}
-		return new Uri[] { uri };
+		return null;
 	}
 
+	/*
+	 * Reports the end of the stream once enough has been read, whether or
+	 * not the server honoured the range that was asked for.
+	 */
+	private static final class CappedInputStream extends FilterInputStream {
+		private int mRemaining;
+
+		CappedInputStream(InputStream in, int cap) {
+			super(in);
+			mRemaining = cap;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			int read = super.read();
+			if (read != -1) {
+				mRemaining--;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			int read = super.read(buffer, offset, Math.min(count, mRemaining));
+			if (read > 0) {
+				mRemaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(Math.min(count, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Math.min(super.available(), mRemaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
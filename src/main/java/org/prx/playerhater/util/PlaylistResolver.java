@@ -0,0 +1,465 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Resolves playlist Uris, through as many levels as they go, to what should
+ * actually be played.
+ * <p>
+ * Resolution runs on a small pool of its own, so one slow playlist host
+ * holds up nothing but itself, and a backlog of resolutions is refused
+ * rather than queued without end. Every HTTP request gets its own connect
+ * and read timeouts, and the resolution as a whole has a deadline.
+ * Cancelling a resolution aborts the request in flight rather than waiting
+ * for it to finish.
+ * <p>
+ * Results, failures included, are delivered on the main thread. A
+ * cancelled resolution delivers nothing.
+ */
+public final class PlaylistResolver {
+
+	/**
+	 * The most levels of playlists pointing at playlists that are followed.
+	 */
+	public static final int MAX_DEPTH = 10;
+
+	public static final int CONNECT_TIMEOUT = 5 * 1000;
+	public static final int READ_TIMEOUT = 10 * 1000;
+
+	/**
+	 * How long a whole resolution may take, every level included.
+	 */
+	public static final long DEADLINE = 20 * 1000;
+
+	private static final int THREADS = 2;
+	private static final int BACKLOG = 16;
+
+	private static ExecutorService sExecutor;
+	private static Handler sHandler;
+
+	private static final long[] sTotalTimes = new long[MAX_DEPTH];
+	private static final int[] sCounts = new int[MAX_DEPTH];
+
+	/**
+	 * Hears how a resolution went, on the main thread.
+	 */
+	public interface Callback {
+		void onResolved(Request request, Result result);
+	}
+
+	/**
+	 * What a Uri resolved to, or why it couldn't be.
+	 */
+	public static final class Result {
+		public static final int OK = 0;
+
+		/**
+		 * Playlists pointed at playlists more than {@link #MAX_DEPTH} deep.
+		 */
+		public static final int TOO_DEEP = 1;
+
+		/**
+		 * The resolution went past its {@link #DEADLINE}.
+		 */
+		public static final int TIMED_OUT = 2;
+
+		/**
+		 * Too many resolutions were already waiting.
+		 */
+		public static final int REJECTED = 3;
+
+		/**
+		 * A request failed before the playlist could be read.
+		 */
+		public static final int NETWORK = 4;
+
+		private final int mError;
+		private final Uri[] mUris;
+		private final boolean mMirrors;
+		private final long[] mDepthTimes;
+		private final int mDepth;
+
+		private Result(int error, Uri[] uris, boolean mirrors,
+				long[] depthTimes, int depth) {
+			mError = error;
+			mUris = uris;
+			mMirrors = mirrors;
+			mDepthTimes = depthTimes;
+			mDepth = depth;
+		}
+
+		public boolean isSuccessful() {
+			return mError == OK;
+		}
+
+		/**
+		 * @return {@link #OK}, {@link #TOO_DEEP}, {@link #TIMED_OUT},
+		 *         {@link #REJECTED} or {@link #NETWORK}.
+		 */
+		public int getError() {
+			return mError;
+		}
+
+		/**
+		 * @return What to play, or {@code null} if resolution failed.
+		 */
+		public Uri[] getUris() {
+			return mUris == null ? null : mUris.clone();
+		}
+
+		/**
+		 * @return Whether the Uris are mirrors of one live stream, best
+		 *         first, rather than a playlist to be played in order.
+		 */
+		public boolean isMirrors() {
+			return mMirrors;
+		}
+
+		/**
+		 * @return How many levels were resolved.
+		 */
+		public int getDepth() {
+			return mDepth;
+		}
+
+		/**
+		 * @return How long resolving the given level took, in milliseconds.
+		 */
+		public long getResolutionTime(int depth) {
+			if (depth < 0 || depth >= mDepth) {
+				throw new IndexOutOfBoundsException("depth " + depth
+						+ " of a resolution " + mDepth + " deep");
+			}
+			return mDepthTimes[depth];
+		}
+
+		public long getTotalTime() {
+			long total = 0;
+			for (int i = 0; i < mDepth; i++) {
+				total += mDepthTimes[i];
+			}
+			return total;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("Result(");
+			builder.append(mError).append(", ");
+			for (int i = 0; i < mDepth; i++) {
+				builder.append(mDepthTimes[i]).append("ms ");
+			}
+			return builder.append(mMirrors ? "mirrors)" : "playlist)")
+					.toString();
+		}
+	}
+
+	/**
+	 * A resolution that has been asked for.
+	 */
+	public static final class Request implements Runnable,
+			PlaylistParser.RequestObserver {
+		private final Context mContext;
+		private final Uri mUri;
+		private final int mMirrorRace;
+		private final Callback mCallback;
+		private final Runnable mDeadline = new Runnable() {
+
+			@Override
+			public void run() {
+				timeOut();
+			}
+		};
+
+		private Future<?> mFuture;
+		private HttpUriRequest mInFlight;
+		private boolean mCancelled;
+		private boolean mTimedOut;
+		private boolean mDelivered;
+
+		private Request(Context context, Uri uri, int mirrorRace,
+				Callback callback) {
+			mContext = context;
+			mUri = uri;
+			mMirrorRace = mirrorRace;
+			mCallback = callback;
+		}
+
+		public Uri getUri() {
+			return mUri;
+		}
+
+		public Context getContext() {
+			return mContext;
+		}
+
+		/**
+		 * Stops the resolution, aborting any request in flight. The callback
+		 * won't hear about it.
+		 */
+		public void cancel() {
+			stop(false);
+		}
+
+		@Override
+		public void run() {
+			long[] depthTimes = new long[MAX_DEPTH];
+			int depth = 0;
+			Uri uri = mUri;
+			Uri[] playlist = null;
+			while (depth < MAX_DEPTH) {
+				long startedAt = SystemClock.elapsedRealtime();
+				IOException failure = null;
+				try {
+					playlist = PlaylistParser.parsePlaylist(mContext, uri, this);
+				} catch (IOException e) {
+					failure = e;
+				}
+				depthTimes[depth] = SystemClock.elapsedRealtime() - startedAt;
+				recordDepth(depth, depthTimes[depth]);
+				depth++;
+				if (failure != null && !isStopped()) {
+					Log.d("Could not resolve " + uri + ": " + failure);
+					// Socket timeouts are interrupted too.
+					int error = failure instanceof InterruptedIOException
+							? Result.TIMED_OUT : Result.NETWORK;
+					finish(new Result(error, null, false, depthTimes, depth));
+					return;
+				}
+				if (isStopped()) {
+					finish(new Result(Result.TIMED_OUT, null, false,
+							depthTimes, depth));
+					return;
+				}
+				if (playlist.length != 1 || uri.equals(playlist[0])) {
+					break;
+				}
+				uri = playlist[0];
+				playlist = null;
+			}
+			if (playlist == null) {
+				finish(new Result(Result.TOO_DEEP, null, false, depthTimes,
+						depth));
+				return;
+			}
+
+			boolean mirrors = false;
+			if (playlist.length > 1 && mMirrorRace > 1) {
+				Uri[] raced = MirrorRace.race(playlist, mMirrorRace);
+				if (raced != null) {
+					playlist = raced;
+					mirrors = true;
+				}
+			}
+			finish(new Result(Result.OK, playlist, mirrors, depthTimes, depth));
+		}
+
+		@Override
+		public synchronized void onRequest(HttpUriRequest request)
+				throws IOException {
+			if (mCancelled || mTimedOut) {
+				throw new InterruptedIOException("Resolution stopped");
+			}
+			HttpConnectionParams.setConnectionTimeout(request.getParams(),
+					CONNECT_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(request.getParams(),
+					READ_TIMEOUT);
+			mInFlight = request;
+		}
+
+		@Override
+		public synchronized void onRequestFinished(HttpUriRequest request) {
+			if (mInFlight == request) {
+				mInFlight = null;
+			}
+		}
+
+		private synchronized boolean isStopped() {
+			return mCancelled || mTimedOut;
+		}
+
+		private void timeOut() {
+			if (stop(true)) {
+				deliver(new Result(Result.TIMED_OUT, null, false,
+						new long[0], 0));
+			}
+		}
+
+		/*
+		 * Returns whether this did the stopping.
+		 */
+		private boolean stop(boolean timedOut) {
+			HttpUriRequest inFlight;
+			Future<?> future;
+			synchronized (this) {
+				if (mCancelled || mTimedOut || mDelivered) {
+					return false;
+				}
+				if (timedOut) {
+					mTimedOut = true;
+				} else {
+					mCancelled = true;
+				}
+				inFlight = mInFlight;
+				future = mFuture;
+			}
+			getHandler().removeCallbacks(mDeadline);
+			if (inFlight != null) {
+				inFlight.abort();
+			}
+			if (future != null) {
+				// Interrupts a mirror race, which is waiting rather than
+				// reading.
+				future.cancel(true);
+			}
+			return true;
+		}
+
+		private void finish(final Result result) {
+			getHandler().post(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized (Request.this) {
+						if (mCancelled || mTimedOut) {
+							// Already dealt with by whoever stopped it.
+							return;
+						}
+					}
+					deliver(result);
+				}
+			});
+		}
+
+		private void deliver(Result result) {
+			synchronized (this) {
+				if (mDelivered || mCancelled) {
+					return;
+				}
+				mDelivered = true;
+			}
+			getHandler().removeCallbacks(mDeadline);
+			Log.d("Resolved " + mUri + ": " + result);
+			mCallback.onResolved(this, result);
+		}
+	}
+
+	private PlaylistResolver() {
+	}
+
+	/**
+	 * Starts resolving a Uri.
+	 *
+	 * @param mirrorRace
+	 *            How many entries of a multi-entry playlist to race as
+	 *            mirrors of a live stream, or {@code 0} not to.
+	 * @see MirrorRace
+	 */
+	public static Request resolve(Context context, Uri uri, int mirrorRace,
+			Callback callback) {
+		final Request request = new Request(context, uri, mirrorRace,
+				callback);
+		getHandler().postDelayed(request.mDeadline, DEADLINE);
+		try {
+			Future<?> future = getExecutor().submit(request);
+			synchronized (request) {
+				request.mFuture = future;
+			}
+		} catch (RejectedExecutionException e) {
+			getHandler().removeCallbacks(request.mDeadline);
+			getHandler().post(new Runnable() {
+
+				@Override
+				public void run() {
+					request.deliver(new Result(Result.REJECTED, null, false,
+							new long[0], 0));
+				}
+			});
+		}
+		return request;
+	}
+
+	/**
+	 * @return How long, on average, resolving a level at the given depth has
+	 *         taken, or {@code -1} if nothing has been resolved that deep.
+	 */
+	public static long getAverageResolutionTime(int depth) {
+		synchronized (sCounts) {
+			return sCounts[depth] == 0 ? -1 : sTotalTimes[depth]
+					/ sCounts[depth];
+		}
+	}
+
+	/**
+	 * @return How many levels have been resolved at the given depth.
+	 */
+	public static int getResolutionCount(int depth) {
+		synchronized (sCounts) {
+			return sCounts[depth];
+		}
+	}
+
+	private static void recordDepth(int depth, long time) {
+		synchronized (sCounts) {
+			sTotalTimes[depth] += time;
+			sCounts[depth]++;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							BACKLOG), new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"PlayerHater/PlaylistResolver");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sExecutor;
+	}
+
+	private static synchronized Handler getHandler() {
+		if (sHandler == null) {
+			sHandler = new Handler(Looper.getMainLooper());
+		}
+		return sHandler;
+	}
+}
@@ -163,6 +163,10 @@ public class BoundPlayerHater extends PlayerHater {
 								getPlugin().onNextSongUnavailable();
 							}
 						}
+
+						@Override
+						public void onQueueChanged() {
+						}
 					});
 		}
 		return sSongQueue;
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingProxyTest {
+
+	// Long enough to be cut into three segments, the last one short.
+	private static final int LENGTH = 2 * SegmentCache.SEGMENT_SIZE + 1000;
+
+	private File mDirectory;
+	private byte[] mBody;
+	private FakeOrigin mOrigin;
+	private CachingProxy mProxy;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = File.createTempFile("proxy", "");
+		mDirectory.delete();
+		mDirectory.mkdirs();
+		mBody = randomBytes(1);
+		mOrigin = new FakeOrigin(mBody, "\"v1\"");
+		mProxy = new CachingProxy(new SegmentCache(mDirectory,
+				16 * SegmentCache.SEGMENT_SIZE));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mOrigin.close();
+		delete(mDirectory);
+	}
+
+	@Test
+	public void replaysFromTheCache() throws IOException {
+		ByteArrayOutputStream first = respond(null);
+		int requests = mOrigin.requests;
+
+		ByteArrayOutputStream second = respond(null);
+
+		assertTrue(headers(first).startsWith("HTTP/1.1 200 OK"));
+		assertArrayEquals(mBody, body(first));
+		assertArrayEquals(mBody, body(second));
+		assertEquals(requests, mOrigin.requests);
+		assertEquals(LENGTH, mProxy.getCachedBytes());
+		assertEquals(LENGTH, mProxy.getFetchedBytes());
+	}
+
+	@Test
+	public void answersRangesFromTheMiddle() throws IOException {
+		int start = SegmentCache.SEGMENT_SIZE + 10;
+		int end = start + 99;
+		String range = "bytes=" + start + "-" + end;
+
+		ByteArrayOutputStream fetched = respond(range);
+		int requests = mOrigin.requests;
+		ByteArrayOutputStream cached = respond(range);
+
+		byte[] expected = Arrays.copyOfRange(mBody, start, end + 1);
+		assertTrue(headers(fetched).startsWith("HTTP/1.1 206"));
+		assertTrue(headers(fetched).contains("Content-Range: bytes " + start
+				+ "-" + end + "/" + LENGTH));
+		assertArrayEquals(expected, body(fetched));
+		assertArrayEquals(expected, body(cached));
+		assertEquals(requests, mOrigin.requests);
+	}
+
+	@Test
+	public void servesOnlyTheNewVersionOfAChangedFile() throws IOException {
+		// Only the first segment gets cached.
+		respond("bytes=0-99");
+		byte[] changed = randomBytes(2);
+		mOrigin.change(changed, "\"v2\"");
+
+		ByteArrayOutputStream response = respond(null);
+
+		assertTrue(headers(response).startsWith("HTTP/1.1 200 OK"));
+		assertArrayEquals(changed, body(response));
+		assertEquals("\"v2\"", mProxy.getCache().getInfo(mOrigin.getUrl())
+				.getValidator());
+
+		// And from the cache once it has all been fetched.
+		int requests = mOrigin.requests;
+		assertArrayEquals(changed, body(respond(null)));
+		assertEquals(requests, mOrigin.requests);
+	}
+
+	@Test
+	public void closesTheConnectionWhenTheFileChangesWhileServed()
+			throws IOException {
+		// Only the middle segment gets cached, so the last is fetched
+		// after it has been sent.
+		respond("bytes=" + SegmentCache.SEGMENT_SIZE + "-"
+				+ SegmentCache.SEGMENT_SIZE);
+		final byte[] changed = randomBytes(2);
+		ByteArrayOutputStream response = new ByteArrayOutputStream() {
+
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				super.write(b, off, len);
+				if (size() > 2 * SegmentCache.SEGMENT_SIZE) {
+					mOrigin.change(changed, "\"v2\"");
+				}
+			}
+		};
+
+		try {
+			mProxy.respond(mOrigin.getUrl(), null, false, response);
+			fail("Served a file that changed part way through");
+		} catch (IOException e) {
+			// The player sees the connection drop and asks again.
+		}
+
+		byte[] sent = body(response);
+		assertTrue(sent.length < LENGTH);
+		assertArrayEquals(Arrays.copyOf(mBody, sent.length), sent);
+		assertNull(mProxy.getCache().getInfo(mOrigin.getUrl()));
+	}
+
+	@Test
+	public void sendsPlaylistsBackToTheOrigin() throws IOException {
+		mOrigin.setContentType("application/vnd.apple.mpegurl");
+
+		ByteArrayOutputStream response = respond(null);
+
+		assertTrue(headers(response).startsWith("HTTP/1.1 302"));
+		assertTrue(headers(response).contains("Location: "
+				+ mOrigin.getUrl()));
+		assertEquals(0, body(response).length);
+		assertNull(mProxy.getCache().getInfo(mOrigin.getUrl()));
+	}
+
+	private ByteArrayOutputStream respond(String range) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mProxy.respond(mOrigin.getUrl(), range, false, out);
+		return out;
+	}
+
+	private static String headers(ByteArrayOutputStream response)
+			throws IOException {
+		String all = response.toString("ISO-8859-1");
+		return all.substring(0, all.indexOf("\r\n\r\n"));
+	}
+
+	private static byte[] body(ByteArrayOutputStream response)
+			throws IOException {
+		byte[] all = response.toByteArray();
+		int start = headers(response).length() + 4;
+		return Arrays.copyOfRange(all, start, all.length);
+	}
+
+	private static byte[] randomBytes(long seed) {
+		byte[] bytes = new byte[LENGTH];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.prx.playerhater.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A stand-in for the server a file really comes from, on the loopback
+ * interface. It serves one file, honouring Range and If-Range the way a
+ * real server would, and the file can be changed under it with
+ * {@link #change(byte[], String)}.
+ */
+public class FakeOrigin {
+
+	private final ServerSocket mServerSocket;
+	private byte[] mBody;
+	private String mETag;
+	private String mContentType = "audio/mpeg";
+
+	public int requests;
+	public String lastIfRange;
+
+	public FakeOrigin(byte[] body, String etag) throws IOException {
+		mBody = body;
+		mETag = etag;
+		mServerSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = mServerSocket.accept();
+					} catch (IOException e) {
+						return;
+					}
+					Thread worker = new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					});
+					worker.setDaemon(true);
+					worker.start();
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort()
+				+ "/file.mp3";
+	}
+
+	public synchronized void change(byte[] body, String etag) {
+		mBody = body;
+		mETag = etag;
+	}
+
+	public synchronized void setContentType(String contentType) {
+		mContentType = contentType;
+	}
+
+	public void close() throws IOException {
+		mServerSocket.close();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			String range = null;
+			String ifRange = null;
+			readLine(in);
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Range")) {
+					range = value;
+				} else if (name.equalsIgnoreCase("If-Range")) {
+					ifRange = value;
+				}
+			}
+			byte[] body;
+			String etag;
+			String contentType;
+			synchronized (this) {
+				requests++;
+				lastIfRange = ifRange;
+				body = mBody;
+				etag = mETag;
+				contentType = mContentType;
+			}
+
+			int start = 0;
+			int end = body.length - 1;
+			boolean ranged = range != null
+					&& (ifRange == null || ifRange.equals(etag));
+			if (ranged) {
+				String spec = range.substring("bytes=".length());
+				int dash = spec.indexOf('-');
+				start = Integer.parseInt(spec.substring(0, dash));
+				if (dash + 1 < spec.length()) {
+					end = Math.min(end,
+							Integer.parseInt(spec.substring(dash + 1)));
+				}
+			}
+			StringBuilder headers = new StringBuilder();
+			if (ranged) {
+				headers.append("HTTP/1.1 206 Partial Content\r\n");
+				headers.append("Content-Range: bytes " + start + "-" + end
+						+ "/" + body.length + "\r\n");
+			} else {
+				headers.append("HTTP/1.1 200 OK\r\n");
+			}
+			headers.append("Content-Type: " + contentType + "\r\n");
+			headers.append("ETag: " + etag + "\r\n");
+			headers.append("Content-Length: " + (end - start + 1) + "\r\n");
+			headers.append("Connection: close\r\n\r\n");
+			OutputStream out = socket.getOutputStream();
+			out.write(headers.toString().getBytes("US-ASCII"));
+			out.write(body, start, end - start + 1);
+			out.flush();
+		} catch (IOException e) {
+			// The proxy gave up on this response.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Closed either way.
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new IOException("Request ended early");
+			} else if (b != '\r') {
+				line.write(b);
+			}
+		}
+		return line.toString("US-ASCII");
+	}
+}
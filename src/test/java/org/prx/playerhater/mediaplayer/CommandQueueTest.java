@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandQueueTest {
+
+	private CommandQueue<String> mQueue;
+
+	@Before
+	public void setUp() {
+		mQueue = new CommandQueue<String>();
+	}
+
+	@Test
+	public void runsCommandsInTheOrderAPlayerNeedsThem() {
+		mQueue.play();
+		mQueue.seek(100);
+		mQueue.prepare();
+		mQueue.setSource("a");
+		mQueue.play();
+		mQueue.seek(200);
+		mQueue.prepare();
+
+		assertEquals(CommandQueue.SET_SOURCE, mQueue.peek());
+		assertEquals("a", mQueue.takeSource());
+		assertEquals(CommandQueue.PREPARE, mQueue.peek());
+		mQueue.remove(CommandQueue.PREPARE);
+		assertEquals(CommandQueue.SEEK, mQueue.peek());
+		assertEquals(200, mQueue.takeSeekPosition());
+		assertEquals(CommandQueue.PLAY, mQueue.peek());
+		mQueue.remove(CommandQueue.PLAY);
+		assertEquals(CommandQueue.NONE, mQueue.peek());
+	}
+
+	@Test
+	public void newSourceCollapsesEverythingWaiting() {
+		mQueue.setSource("a");
+		mQueue.prepare();
+		mQueue.seek(100);
+		mQueue.play();
+		mQueue.setSource("b");
+
+		assertEquals(5, mQueue.getEnqueuedCount());
+		assertEquals(4, mQueue.getCollapsedCount());
+		assertEquals("b", mQueue.takeSource());
+		assertEquals(CommandQueue.NONE, mQueue.peek());
+	}
+
+	@Test
+	public void laterSeekReplacesWaitingSeek() {
+		assertFalse(mQueue.seek(100));
+		assertTrue(mQueue.seek(200));
+		assertTrue(mQueue.seek(300));
+
+		assertEquals(3, mQueue.getEnqueuedCount());
+		assertEquals(2, mQueue.getCollapsedCount());
+		assertEquals(300, mQueue.takeSeekPosition());
+	}
+
+	@Test
+	public void repeatedPrepareAndPlayCollapse() {
+		mQueue.prepare();
+		mQueue.prepare();
+		mQueue.play();
+		mQueue.play();
+		mQueue.play();
+
+		assertEquals(5, mQueue.getEnqueuedCount());
+		assertEquals(3, mQueue.getCollapsedCount());
+	}
+
+	@Test
+	public void cancelDropsOnlyWaitingCommands() {
+		mQueue.play();
+
+		assertTrue(mQueue.cancel(CommandQueue.PLAY));
+		assertFalse(mQueue.cancel(CommandQueue.PLAY));
+		assertFalse(mQueue.isPending(CommandQueue.PLAY));
+	}
+}
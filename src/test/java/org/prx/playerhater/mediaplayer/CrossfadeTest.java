@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.prx.playerhater.Song;
+
+import android.net.Uri;
+
+public class CrossfadeTest {
+
+	private FakePlayer mFake;
+	private SynchronousPlayer mPlayer;
+	private Crossfade<SynchronousPlayer> mCrossfade;
+	private Song mNext;
+
+	@Before
+	public void setUp() {
+		mFake = new FakePlayer();
+		mPlayer = new SynchronousPlayer(mFake);
+		mPlayer.prepare(null, uri());
+		mFake.finishPreparing();
+		mPlayer.start();
+		mCrossfade = new Crossfade<SynchronousPlayer>();
+		mNext = mock(Song.class);
+	}
+
+	@Test
+	public void songChangeTheFadeMadeLeavesItRunning() {
+		mCrossfade.start(mPlayer, mNext, 5000);
+
+		// The queue's callback, landing after the fade has begun.
+		assertNull(mCrossfade.onNowPlayingChanged(mNext));
+
+		assertTrue(mCrossfade.isFading());
+		assertSame(mPlayer, mCrossfade.getPlayer());
+		assertEquals(StatelyPlayer.STARTED, mPlayer.getState());
+		assertTrue(mFake.isPlaying());
+		assertEquals(0f, mPlayer.getFadeGain(), 0f);
+	}
+
+	@Test
+	public void laterSongChangeEndsTheFade() {
+		mCrossfade.start(mPlayer, mNext, 5000);
+		mCrossfade.onNowPlayingChanged(mNext);
+
+		assertSame(mPlayer, mCrossfade.onNowPlayingChanged(mock(Song.class)));
+		assertFalse(mCrossfade.isFading());
+	}
+
+	@Test
+	public void changeToAnotherSongEndsTheFade() {
+		mCrossfade.start(mPlayer, mNext, 5000);
+
+		// Skipped somewhere else before the queue caught up.
+		assertSame(mPlayer, mCrossfade.onNowPlayingChanged(mock(Song.class)));
+		assertNull(mCrossfade.onNowPlayingChanged(mNext));
+	}
+
+	@Test
+	public void endHandsBackThePlayerOnce() {
+		mCrossfade.start(mPlayer, mNext, 5000);
+
+		assertSame(mPlayer, mCrossfade.end());
+		assertNull(mCrossfade.end());
+		assertFalse(mCrossfade.isFading());
+	}
+
+	private static Uri uri() {
+		Uri uri = mock(Uri.class);
+		when(uri.getScheme()).thenReturn("file");
+		return uri;
+	}
+}
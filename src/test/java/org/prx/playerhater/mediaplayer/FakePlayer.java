@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+
+/**
+ * A MediaPlayer that does nothing but count what it is asked to do, so that
+ * a {@link SynchronousPlayer} can be driven on the JVM. Preparing and seeking
+ * finish only when the test says so, by calling {@link #finishPreparing()}
+ * and {@link #finishSeeking()}. Playback runs out with
+ * {@link #finishPlaying()}, starting whichever player was chained with
+ * {@link #setNextMediaPlayer(MediaPlayer)} the way the platform would.
+ */
+public class FakePlayer extends MediaPlayer {
+
+	private OnPreparedListener mPreparedListener;
+	private OnSeekCompleteListener mSeekCompleteListener;
+	private OnCompletionListener mCompletionListener;
+
+	public int dataSources;
+	public int prepares;
+	public int seeks;
+	public int starts;
+	public int pauses;
+	public int stops;
+	public int resets;
+	public int lastSeek = -1;
+	public MediaPlayer next;
+	private boolean mPlaying;
+
+	public void finishPreparing() {
+		mPreparedListener.onPrepared(this);
+	}
+
+	public void finishSeeking() {
+		mSeekCompleteListener.onSeekComplete(this);
+	}
+
+	public void finishPlaying() {
+		mPlaying = false;
+		if (next instanceof FakePlayer) {
+			((FakePlayer) next).mPlaying = true;
+		}
+		mCompletionListener.onCompletion(this);
+	}
+
+	/**
+	 * @return How many calls reached the MediaPlayer, which is what the
+	 *         command queue is there to keep down.
+	 */
+	public int getCallCount() {
+		return dataSources + prepares + seeks + starts + pauses + stops
+				+ resets;
+	}
+
+	@Override
+	public void setDataSource(Context context, Uri uri) {
+		dataSources++;
+	}
+
+	@Override
+	public void setDataSource(String path) {
+		dataSources++;
+	}
+
+	@Override
+	public void prepareAsync() {
+		prepares++;
+	}
+
+	@Override
+	public void start() {
+		starts++;
+		mPlaying = true;
+	}
+
+	@Override
+	public void pause() {
+		pauses++;
+		mPlaying = false;
+	}
+
+	@Override
+	public void stop() {
+		stops++;
+		mPlaying = false;
+	}
+
+	@Override
+	public void seekTo(int msec) {
+		seeks++;
+		lastSeek = msec;
+	}
+
+	@Override
+	public void reset() {
+		resets++;
+		mPlaying = false;
+	}
+
+	@Override
+	public void release() {
+		mPlaying = false;
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return mPlaying;
+	}
+
+	@Override
+	public void setOnPreparedListener(OnPreparedListener listener) {
+		mPreparedListener = listener;
+	}
+
+	@Override
+	public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+		mSeekCompleteListener = listener;
+	}
+
+	@Override
+	public void setOnCompletionListener(OnCompletionListener listener) {
+		mCompletionListener = listener;
+	}
+
+	@Override
+	public void setNextMediaPlayer(MediaPlayer next) {
+		this.next = next;
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.net.Uri;
+
+/**
+ * Measures hand overs between chained players, so a change that makes
+ * them slower or stops them being recorded shows up here. The clock stands
+ * still on the JVM, so a hand over done on time is a gap of nothing.
+ */
+public class StateJournalTest {
+
+	@Test
+	public void measuresNativelyChainedHandoff() {
+		FakePlayer firstFake = new FakePlayer();
+		FakePlayer secondFake = new FakePlayer();
+		SynchronousPlayer first = playing(firstFake, true);
+		SynchronousPlayer second = prepared(secondFake, true);
+
+		assertTrue(first.setNextPlayer(second));
+		assertSame(secondFake, firstFake.next);
+		startOnCompletion(first, second);
+		StateJournal journal = second.getJournal();
+		assertEquals(0, journal.getHandoffCount());
+		assertEquals(-1, journal.getHandoffGap());
+
+		firstFake.finishPlaying();
+
+		assertTrue(secondFake.isPlaying());
+		assertEquals(StatelyPlayer.STARTED, second.getState());
+		assertEquals(1, journal.getHandoffCount());
+		assertEquals(0, journal.getHandoffGap());
+	}
+
+	@Test
+	public void measuresHandoffStartedFromJava() {
+		FakePlayer firstFake = new FakePlayer();
+		FakePlayer secondFake = new FakePlayer();
+		SynchronousPlayer first = playing(firstFake, false);
+		SynchronousPlayer second = prepared(secondFake, false);
+
+		assertFalse(first.setNextPlayer(second));
+		assertNull(firstFake.next);
+		startOnCompletion(first, second);
+		StateJournal journal = second.getJournal();
+
+		firstFake.finishPlaying();
+
+		assertEquals(1, secondFake.starts);
+		assertEquals(StatelyPlayer.STARTED, second.getState());
+		assertEquals(1, journal.getHandoffCount());
+		assertEquals(0, journal.getHandoffGap());
+		assertEquals(0, first.getJournal().getHandoffCount());
+	}
+
+	@Test
+	public void unchainedPlayerRecordsNoHandoff() {
+		FakePlayer firstFake = new FakePlayer();
+		FakePlayer secondFake = new FakePlayer();
+		SynchronousPlayer first = playing(firstFake, false);
+		SynchronousPlayer second = prepared(secondFake, false);
+
+		first.setNextPlayer(second);
+		first.setNextPlayer(null);
+		startOnCompletion(first, second);
+		firstFake.finishPlaying();
+
+		assertEquals(StatelyPlayer.STARTED, second.getState());
+		assertEquals(0, second.getJournal().getHandoffCount());
+	}
+
+	private static SynchronousPlayer prepared(FakePlayer fake,
+			boolean gapless) {
+		SynchronousPlayer player = new SynchronousPlayer(fake, gapless);
+		player.prepare(null, uri());
+		fake.finishPreparing();
+		return player;
+	}
+
+	private static SynchronousPlayer playing(FakePlayer fake,
+			boolean gapless) {
+		SynchronousPlayer player = prepared(fake, gapless);
+		player.start();
+		return player;
+	}
+
+	// What PlaylistSupportingPlayer does when a song in a playlist ends.
+	private static void startOnCompletion(SynchronousPlayer first,
+			final SynchronousPlayer second) {
+		first.setOnCompletionListener(new OnCompletionListener() {
+
+			@Override
+			public void onCompletion(MediaPlayer mp) {
+				second.start();
+			}
+		});
+	}
+
+	private static Uri uri() {
+		Uri uri = mock(Uri.class);
+		when(uri.getScheme()).thenReturn("file");
+		return uri;
+	}
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2013 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.net.Uri;
+
+public class SynchronousPlayerTest {
+
+	private FakePlayer mFake;
+	private SynchronousPlayer mPlayer;
+
+	@Before
+	public void setUp() {
+		mFake = new FakePlayer();
+		mPlayer = new SynchronousPlayer(mFake);
+	}
+
+	@Test
+	public void commandsWaitForPrepareAndCollapse() {
+		mPlayer.prepare(null, uri());
+		mPlayer.seekTo(1000);
+		mPlayer.seekTo(2000);
+		mPlayer.seekTo(3000);
+		mPlayer.start();
+		mPlayer.start();
+
+		// Nothing past the prepare reaches the MediaPlayer until it's ready.
+		assertEquals(1, mFake.dataSources);
+		assertEquals(1, mFake.prepares);
+		assertEquals(2, mFake.getCallCount());
+
+		mFake.finishPreparing();
+		assertEquals(1, mFake.seeks);
+		assertEquals(3000, mFake.lastSeek);
+		assertEquals(0, mFake.starts);
+
+		mFake.finishSeeking();
+		assertEquals(1, mFake.starts);
+		assertEquals(StatelyPlayer.STARTED, mPlayer.getState());
+
+		// Seven commands, of which two seeks and a play collapsed away.
+		CommandQueue<?> commands = mPlayer.getCommandQueue();
+		assertEquals(7, commands.getEnqueuedCount());
+		assertEquals(3, commands.getCollapsedCount());
+		assertEquals(4, mFake.getCallCount());
+
+		// Initialized, preparing, prepared, seeking, prepared, started.
+		StateJournal journal = mPlayer.getJournal();
+		assertEquals(6, journal.size());
+		assertEquals(2, journal.getDroppedSeekCount());
+	}
+
+	@Test
+	public void newSourceDropsWhatWasWaitingForTheOld() {
+		mPlayer.prepare(null, uri());
+		mPlayer.seekTo(1000);
+		mPlayer.start();
+		mPlayer.prepare(null, uri());
+
+		assertEquals(1, mFake.resets);
+		assertEquals(2, mFake.dataSources);
+		assertEquals(2, mFake.prepares);
+
+		mFake.finishPreparing();
+		assertEquals(0, mFake.seeks);
+		assertEquals(0, mFake.starts);
+		assertEquals(StatelyPlayer.PREPARED, mPlayer.getState());
+		assertEquals(2, mPlayer.getCommandQueue().getCollapsedCount());
+	}
+
+	@Test
+	public void sameSourceIsNotPreparedAgain() {
+		Uri uri = uri();
+		mPlayer.prepare(null, uri);
+		mPlayer.prepare(null, uri);
+		mFake.finishPreparing();
+		mPlayer.prepare(null, uri);
+
+		assertEquals(1, mFake.dataSources);
+		assertEquals(1, mFake.prepares);
+		assertEquals(0, mFake.resets);
+		assertEquals(StatelyPlayer.PREPARED, mPlayer.getState());
+	}
+
+	@Test
+	public void pauseCancelsAWaitingPlay() {
+		mPlayer.prepare(null, uri());
+		mPlayer.start();
+
+		assertTrue(mPlayer.conditionalPause());
+		mFake.finishPreparing();
+
+		assertEquals(0, mFake.starts);
+		assertEquals(0, mFake.pauses);
+		assertEquals(StatelyPlayer.PREPARED, mPlayer.getState());
+	}
+
+	@Test
+	public void manySeeksWhilePlayingOnlyKeepOneInFlight() {
+		mPlayer.prepare(null, uri());
+		mFake.finishPreparing();
+		mPlayer.start();
+		for (int i = 1; i <= 100; i++) {
+			mPlayer.seekTo(i * 100);
+		}
+
+		// The first went straight through; the rest wait for it and keep
+		// only the latest target.
+		assertEquals(1, mFake.seeks);
+		assertEquals(100, mFake.lastSeek);
+
+		mFake.finishSeeking();
+		assertEquals(2, mFake.seeks);
+		assertEquals(10000, mFake.lastSeek);
+
+		mFake.finishSeeking();
+		assertEquals(StatelyPlayer.STARTED, mPlayer.getState());
+		assertEquals(98, mPlayer.getJournal().getDroppedSeekCount());
+	}
+
+	/*
+	 * Each call is a different Uri; file Uris are handed to the MediaPlayer
+	 * as they are.
+	 */
+	private static Uri uri() {
+		Uri uri = mock(Uri.class);
+		when(uri.getScheme()).thenReturn("file");
+		return uri;
+	}
+}